@@ -0,0 +1,43 @@
+#!/usr/bin/env bash
+# Compiles the sources into out/ (and out/medscript.jar) and records class-data-sharing (AppCDS) archives
+# from training runs over samples/: out/medscript-cli.jsa for medscript.Main and
+# out/medscript-gui.jsa for the Swing GUI (needs a display; use xvfb-run when headless).
+# scripts/medscript and scripts/medscript-gui pick the archives up automatically.
+# Works with JDK 17+; rerun after every rebuild, the archive must match the jar.
+set -euo pipefail
+ROOT="$(cd "$(dirname "$0")/.." && pwd)"
+OUT="$ROOT/out"
+TMP="$(mktemp -d)"
+trap 'rm -rf "$TMP"' EXIT
+cd "$ROOT"
+
+javac -encoding UTF-8 -d "$OUT" $(find src -name "*.java")
+# CDS only archives application classes loaded from jar files
+JAR="$OUT/medscript.jar"
+rm -f "$JAR"
+jar --create --file "$JAR" -C "$OUT" medscript
+
+# The class lists of several runs are merged, so every CLI mode lands in one archive.
+n=0
+train() {
+    n=$((n + 1))
+    java -Xshare:off -XX:DumpLoadedClassList="$TMP/cli-$n.lst" -cp "$JAR" medscript.Main "$@" > /dev/null
+}
+for f in samples/*.med; do
+    train "$f"
+    train "$f" --tokens
+done
+train --batch --ndjson /dev/null samples 2> /dev/null || true
+cat "$TMP"/cli-*.lst | awk '!/^#/ && !seen[$0]++' > "$TMP/cli.classlist"
+java -Xshare:dump -XX:SharedClassListFile="$TMP/cli.classlist" -XX:SharedArchiveFile="$OUT/medscript-cli.jsa" \
+     -cp "$JAR" > /dev/null
+echo "CLI archive: $OUT/medscript-cli.jsa ($(grep -c . "$TMP/cli.classlist") classes)"
+
+if [ -n "${DISPLAY:-}" ] || [ "$(uname)" = Darwin ]; then
+    java -Xshare:off -XX:DumpLoadedClassList="$TMP/gui.classlist" -cp "$JAR" medscript.gui.MedScriptGUI --training samples/*.med
+    java -Xshare:dump -XX:SharedClassListFile="$TMP/gui.classlist" -XX:SharedArchiveFile="$OUT/medscript-gui.jsa" \
+         -cp "$JAR" > /dev/null
+    echo "GUI archive: $OUT/medscript-gui.jsa ($(grep -c . "$TMP/gui.classlist") classes)"
+else
+    echo "No display: skipped the GUI archive (run under xvfb-run to build it)" >&2
+fi
@@ -0,0 +1,12 @@
+#!/usr/bin/env bash
+# Differential lexer check: compiles src/ and test/ into a temporary directory and runs
+# medscript.compiler.LexerParityCheck over samples/ plus generated and fuzzed inputs.
+# Every lexer must produce the same tokens as the reference regex lexer (test/).
+# Extra arguments go to the check, e.g. --generated 5000 --fuzz 100000 --seed 7 more.med
+set -euo pipefail
+ROOT="$(cd "$(dirname "$0")/.." && pwd)"
+TMP="$(mktemp -d)"
+trap 'rm -rf "$TMP"' EXIT
+
+javac -encoding UTF-8 -d "$TMP" $(find "$ROOT/src" "$ROOT/test" -name "*.java")
+java -cp "$TMP" medscript.compiler.LexerParityCheck "$@" "$ROOT/samples"
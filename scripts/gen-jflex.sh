@@ -0,0 +1,33 @@
+#!/usr/bin/env bash
+# Regenerates src/medscript/compiler/JFlexMedLexer.java from jflex/MedLexer.flex with
+# JFlex 1.9.1 and the skeleton in jflex/MedLexer.skeleton. The generated file is checked
+# in, so this is only needed after editing the spec. The JFlex jars are downloaded from
+# Maven Central into $JFLEX_CACHE (default ~/.cache/medscript-jflex) and checked by sha1.
+# Run scripts/check-lexers.sh afterwards: the generated lexer must match MedLexer.
+set -euo pipefail
+ROOT="$(cd "$(dirname "$0")/.." && pwd)"
+CACHE="${JFLEX_CACHE:-$HOME/.cache/medscript-jflex}"
+MAVEN="https://repo1.maven.org/maven2"
+mkdir -p "$CACHE"
+cd "$ROOT"
+
+fetch() {
+    local jar="$CACHE/$(basename "$1")"
+    if [ ! -s "$jar" ]; then
+        curl -fsSL -o "$jar.part" "$MAVEN/$1"
+        mv "$jar.part" "$jar"
+    fi
+    if [ "$(sha1sum "$jar" | cut -d' ' -f1)" != "$2" ]; then
+        echo "Checksum mismatch for $jar (delete it and rerun)" >&2
+        exit 1
+    fi
+    echo "$jar"
+}
+JFLEX="$(fetch de/jflex/jflex/1.9.1/jflex-1.9.1.jar 4dcdeb5ac92a5cf4a62526684498346cc233bf44)"
+# jflex-1.9.1.jar needs the CUP runtime; Maven Central has no jflex-full jar
+CUP="$(fetch com/github/vbmacher/java-cup-runtime/11b-20160615-1/java-cup-runtime-11b-20160615-1.jar \
+    bf67bec3179946a1df440efdc7e943f9d51c0865)"
+
+java -cp "$JFLEX:$CUP" jflex.Main -q --skel jflex/MedLexer.skeleton -d src/medscript/compiler jflex/MedLexer.flex
+rm -f src/medscript/compiler/JFlexMedLexer.java~
+echo "Generated src/medscript/compiler/JFlexMedLexer.java"
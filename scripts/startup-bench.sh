@@ -0,0 +1,30 @@
+#!/usr/bin/env bash
+# Time to first JSON for a cold `medscript.Main <file>`: wall time from launch until the
+# report has been printed, as the median of N runs, without CDS, with the JDK's default
+# archive only, and with out/medscript-cli.jsa (see scripts/build-cds.sh).
+# Usage: scripts/startup-bench.sh [runs] [file.med]
+set -euo pipefail
+ROOT="$(cd "$(dirname "$0")/.." && pwd)"
+RUNS="${1:-20}"
+FILE="${2:-$ROOT/samples/sample_semantic_error.med}"
+JSA="$ROOT/out/medscript-cli.jsa"
+
+median_ms() {
+    local cp="$1"; shift
+    local times=()
+    for ((i = 0; i < RUNS; i++)); do
+        local t0=$(date +%s%N)
+        java "$@" -cp "$cp" medscript.Main "$FILE" > /dev/null
+        times+=($(( ($(date +%s%N) - t0) / 1000000 )))
+    done
+    printf '%s\n' "${times[@]}" | sort -n | sed -n "$(( (RUNS + 1) / 2 ))p"
+}
+
+printf '%-22s %8s\n' "configuration" "median ms"
+printf '%-22s %8s\n' "no CDS" "$(median_ms "$ROOT/out" -Xshare:off)"
+printf '%-22s %8s\n' "JDK archive" "$(median_ms "$ROOT/out" -Xshare:auto)"
+if [ -f "$JSA" ]; then
+    printf '%-22s %8s\n' "medscript-cli.jsa" "$(median_ms "$ROOT/out/medscript.jar" -XX:SharedArchiveFile="$JSA" -Xshare:auto)"
+else
+    echo "out/medscript-cli.jsa not found; run scripts/build-cds.sh first" >&2
+fi
@@ -3,52 +3,126 @@ package medscript;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import medscript.batch.BatchCompiler;
 import medscript.compiler.*;
 import medscript.compiler.Parser.*;
+import medscript.server.CompileDaemon;
+import medscript.server.CompileServer;
 
 public class Main {
 
+    private static final String USAGE =
+            "Usage: java -cp out medscript.Main <file.med> [--tokens] [--lexer=hand|jflex] [--metrics=<file|->]\n"
+            + "       java -cp out medscript.Main <file.med> --validate [--fail-fast] [--max-diagnostics=N]\n"
+            + "       java -cp out medscript.Main --batch [--out-dir <dir> | --ndjson <file|->] [--validate] [--threads N] <inputs>...\n"
+            + "       java -cp out medscript.Main --serve [--port N] [--max-kb KB] [--max-records N] [--cache <entries>]\n"
+            + "       java -cp out medscript.Main --daemon [--socket <path>] | --client [--socket <path>] <file|->...\n"
+            + "--lexer, --metrics and --max-diagnostics accept both --name=value and --name value.";
+
     public static void main(String[] args) throws Exception {
         if (args.length == 0) {
-            System.out.println("Usage: java -cp out medscript.Main <file.med> [--tokens]");
+            System.out.println(USAGE);
             System.exit(1);
         }
 
-        boolean showTokens = Arrays.asList(args).contains("--tokens");
+        if ("--batch".equals(args[0])) {
+            BatchCompiler.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if ("--serve".equals(args[0])) {
+            CompileServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if ("--daemon".equals(args[0])) {
+            CompileDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if ("--client".equals(args[0])) {
+            System.exit(CompileDaemon.client(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        boolean showTokens = false;
+        LexerKind lexerKind = LexerKind.HAND;
+        String metricsOut = null;
+        boolean validate = false, failFast = false;
+        int maxDiagnostics = Integer.MAX_VALUE;
+        for (int i = 1; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--tokens")) showTokens = true;
+            else if (a.startsWith("--lexer=")) lexerKind = lexer(a.substring("--lexer=".length()));
+            else if (a.equals("--lexer") && i + 1 < args.length) lexerKind = lexer(args[++i]);
+            else if (a.startsWith("--metrics=")) metricsOut = a.substring("--metrics=".length());
+            else if (a.equals("--metrics") && i + 1 < args.length) metricsOut = args[++i];
+            else if (a.equals("--validate")) validate = true;
+            else if (a.equals("--fail-fast")) failFast = true;
+            else if (a.startsWith("--max-diagnostics=")) maxDiagnostics = maxDiagnostics(a.substring("--max-diagnostics=".length()), USAGE);
+            else if (a.equals("--max-diagnostics") && i + 1 < args.length) maxDiagnostics = maxDiagnostics(args[++i], USAGE);
+            else if (a.equals("--lexer") || a.equals("--metrics") || a.equals("--max-diagnostics")) usageError(a + " needs a value", USAGE);
+            else if (a.startsWith("--")) usageError("Unknown option: " + a, USAGE);
+        }
         String path = args[0];
         String input = Files.readString(Path.of(path));
 
-        // Lex + Parse
-        Parser parser = new Parser(new StringReader(input));
-        ParseResult pr = parser.parse();
-
-        // Semantic
-        SemanticAnalyzer sem = new SemanticAnalyzer();
-        List<Diagnostic> semDiags = sem.analyze(pr.program);
+        // Lex, parse, check and emit; the tokens are kept for --tokens
+        CompileMetrics metrics = metricsOut != null ? new CompileMetrics(SemanticAnalyzer.shared()) : null;
+        MedScriptCompiler.Builder b = MedScriptCompiler.builder().lexer(lexerKind).keepTokens(showTokens).metrics(metrics)
+                .failFast(failFast).maxDiagnostics(maxDiagnostics);
+        if (validate) b.validate();
+        MedScriptCompiler.Result result = b.build().compile(input);
 
         // Tokens option
         if (showTokens) {
             System.out.println("=== TOKENS ===");
-            MedLexer lx = new MedLexer(new StringReader(input));
-            Token t;
-            do {
-                t = lx.nextToken();
-                System.out.println(t);
-            } while (t.type != TokenType.EOF);
+            for (int i = 0; i < result.tokens.size(); i++) {
+                System.out.println(result.tokens.token(i));
+            }
             System.out.println();
         }
 
-        // Diagnostics
-        List<Diagnostic> all = new ArrayList<>();
-        all.addAll(pr.diagnostics);
-        all.addAll(semDiags);
+        printReport(result, System.out);
+        if (metrics != null) metrics.write(metricsOut);
+        // --validate answers "is it valid" through the exit status too
+        if (validate && result.hasErrors()) System.exit(2);
+    }
+
+    // --max-diagnostics value; anything but a positive number is a usage error
+    public static int maxDiagnostics(String value, String usage) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= 1) return n;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        usageError("--max-diagnostics needs a number of at least 1, got: " + value, usage);
+        return -1;
+    }
+
+    // --lexer value, case-insensitive
+    private static LexerKind lexer(String value) {
+        try {
+            return LexerKind.parse(value);
+        } catch (IllegalArgumentException e) {
+            usageError("--lexer must be hand or jflex, got: " + value, USAGE);
+            return null;
+        }
+    }
+
+    // Prints the problem and the usage to stderr and exits with 2.
+    public static void usageError(String message, String usage) {
+        System.err.println(message);
+        System.err.println(usage);
+        System.exit(2);
+    }
 
-        System.out.println("=== DIAGNOSTICS ===");
-        if (all.isEmpty()) System.out.println("(none)");
-        else for (Diagnostic d: all) System.out.println(d);
+    // Diagnostics and JSON as printed for a single file (also sent back by the daemon).
+    public static void printReport(MedScriptCompiler.Result result, PrintStream out) {
+        out.println("=== DIAGNOSTICS ===");
+        if (result.diagnostics.isEmpty()) out.println("(none)");
+        else for (Diagnostic d: result.diagnostics) out.println(d);
 
-        System.out.println();
-        System.out.println("=== JSON OUTPUT ===");
-        System.out.println(JsonEmitter.toJson(pr.program));
+        if (result.json == null) return;   // validation only
+        out.println();
+        out.println("=== JSON OUTPUT ===");
+        out.println(result.json());
     }
 }
@@ -0,0 +1,453 @@
+package medscript.batch;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.*;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import medscript.Main;
+import medscript.compiler.*;
+import medscript.compiler.Parser.*;
+
+// Compiles many .med files in parallel and writes one JSON file per input
+// or a single NDJSON stream, followed by a throughput summary on stderr.
+public class BatchCompiler {
+
+    private static final String USAGE =
+            "Usage: java -cp out medscript.Main --batch [--out-dir <dir> | --ndjson <file|->] [--threads N] [--records]\n"
+            + "       [--validate] [--fail-fast] [--max-diagnostics N]\n"
+            + "       [--cache <entries>] [--cache-mb <MB>] [--cache-dir <dir>] [--cache-dir-mb <MB>]\n"
+            + "       [--metrics <file|->] [--jfr <file.jfr>] [--jfr-slow-ms N] <dir|glob|file|@list|->...\n"
+            + "       --metrics and --max-diagnostics also accept --name=value";
+
+    private final List<String> inputs = new ArrayList<>();
+    private Path outDir = null;
+    private String ndjson = null;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    // inputs are '---'-separated prescription streams, one NDJSON line per record
+    private boolean records = false;
+    // identical sources are compiled once; --cache-dir keeps results across runs
+    private int cacheEntries = 0;
+    private long cacheMb = 256;
+    private Path cacheDir = null;
+    private long cacheDirMb = CompileCache.DEFAULT_DISK_BYTES >> 20;
+    // JSON dump of the pipeline metrics after the run; also published over JMX while running
+    private String metricsOut = null;
+    // flight recording around the run: JDK profiling events plus every medscript event
+    private Path jfrOut = null;
+    private int jfrSlowMs = 20;
+    // check only: no JSON, panic-mode parser recovery; diagnostics go to stdout unless --ndjson
+    private boolean validate = false;
+    private boolean failFast = false;
+    private int maxDiagnostics = Integer.MAX_VALUE;
+    private MedScriptCompiler compiler = null;
+
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder lexNanos = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder semanticNanos = new LongAdder();
+    private final LongAdder emitNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LongAdder cacheNanos = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final SemanticAnalyzer analyzer = SemanticAnalyzer.shared();
+
+    static class FileResult {
+        final Path file;
+        int record = -1;
+        int startLine = 1;
+        final byte[] json;   // compact UTF-8 document, only kept for NDJSON output
+        final List<Diagnostic> diagnostics;
+        final String failure;
+        FileResult(Path file, byte[] json, List<Diagnostic> diagnostics, String failure) {
+            this.file = file;
+            this.json = json;
+            this.diagnostics = diagnostics;
+            this.failure = failure;
+        }
+        int count(Diagnostic.Level level) {
+            int n = 0;
+            for (Diagnostic d : diagnostics) if (d.level == level) n++;
+            return n;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BatchCompiler batch = new BatchCompiler();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("--out-dir".equals(a) && i + 1 < args.length) batch.outDir = Path.of(args[++i]);
+            else if ("--ndjson".equals(a) && i + 1 < args.length) batch.ndjson = args[++i];
+            else if ("--threads".equals(a) && i + 1 < args.length) batch.threads = Integer.parseInt(args[++i]);
+            else if ("--records".equals(a)) batch.records = true;
+            else if ("--cache".equals(a) && i + 1 < args.length) batch.cacheEntries = Integer.parseInt(args[++i]);
+            else if ("--cache-mb".equals(a) && i + 1 < args.length) batch.cacheMb = Long.parseLong(args[++i]);
+            else if ("--cache-dir".equals(a) && i + 1 < args.length) batch.cacheDir = Path.of(args[++i]);
+            else if ("--cache-dir-mb".equals(a) && i + 1 < args.length) batch.cacheDirMb = Long.parseLong(args[++i]);
+            else if ("--metrics".equals(a) && i + 1 < args.length) batch.metricsOut = args[++i];
+            else if (a.startsWith("--metrics=")) batch.metricsOut = a.substring("--metrics=".length());
+            else if ("--jfr".equals(a) && i + 1 < args.length) batch.jfrOut = Path.of(args[++i]);
+            else if ("--jfr-slow-ms".equals(a) && i + 1 < args.length) batch.jfrSlowMs = Integer.parseInt(args[++i]);
+            else if ("--validate".equals(a)) batch.validate = true;
+            else if ("--fail-fast".equals(a)) batch.failFast = true;
+            else if ("--max-diagnostics".equals(a) && i + 1 < args.length) batch.maxDiagnostics = Main.maxDiagnostics(args[++i], USAGE);
+            else if (a.startsWith("--max-diagnostics=")) batch.maxDiagnostics = Main.maxDiagnostics(a.substring("--max-diagnostics=".length()), USAGE);
+            else if (a.startsWith("--")) Main.usageError("Unknown option: " + a, USAGE);
+            else batch.inputs.add(a);
+        }
+        if (batch.inputs.isEmpty() || (batch.outDir == null && batch.ndjson == null && !batch.validate)
+                || (batch.validate && batch.outDir != null)
+                || (batch.records && batch.ndjson == null && !batch.validate)
+                || ((batch.cacheEntries > 0 || batch.cacheDir != null) && batch.outDir != null && batch.ndjson != null)) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        System.exit(batch.jfrOut != null ? batch.runRecorded() : batch.run());
+    }
+
+    // Phase events are kept from 1 ms (their default threshold) so a long run stays cheap to record.
+    private int runRecorded() throws IOException, InterruptedException {
+        Recording recording;
+        try {
+            recording = new Recording(Configuration.getConfiguration("profile"));
+        } catch (java.text.ParseException e) {
+            throw new IOException("Cannot read the JFR 'profile' settings", e);
+        }
+        for (String phase : new String[]{"Lex", "Parse", "Semantic", "Emit"}) {
+            recording.enable("medscript." + phase).withThreshold(Duration.ofMillis(1));
+        }
+        recording.enable("medscript.SlowCompile").withThreshold(Duration.ofMillis(jfrSlowMs));
+        recording.setName("medscript-batch");
+        recording.setDestination(jfrOut);
+        recording.start();
+        try {
+            return run();
+        } finally {
+            recording.stop();   // writes the destination file
+            recording.close();
+            System.err.println("flight recording: " + jfrOut);
+        }
+    }
+
+    public int run() throws IOException, InterruptedException {
+        List<Path> files = collectInputs(inputs);
+        if (outDir != null) Files.createDirectories(outDir);
+        boolean cached = cacheEntries > 0 || cacheDir != null;
+        // without NDJSON or a cache the JSON is streamed straight into each output file;
+        // with NDJSON the compiler emits compact JSON and the files are emitted again, pretty
+        MedScriptCompiler.Builder b = MedScriptCompiler.builder().analyzer(analyzer).compact(ndjson != null);
+        if (ndjson == null && !cached) b.phases(MedScriptCompiler.Phase.SEMANTIC);
+        if (validate) b.validate();
+        b.failFast(failFast).maxDiagnostics(maxDiagnostics);
+        if (cached) b.cache(cacheEntries, cacheMb << 20, cacheDir).cacheDiskBytes(cacheDirMb << 20);
+        if (metricsOut != null) b.metrics(new CompileMetrics(analyzer).register("batch"));
+        compiler = b.build();
+
+        long t0 = System.nanoTime();
+        int withErrors = 0, failed = 0;
+        long errors = 0, warnings = 0;
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        OutputStream nd = openNdjson();
+        int count = 0;
+        try {
+            // Results are consumed in input order so the NDJSON stream is deterministic;
+            // at most 'window' compiles are in flight so memory stays bounded.
+            int window = threads * 4;
+            ArrayDeque<Future<FileResult>> inFlight = new ArrayDeque<>();
+            Iterator<Callable<FileResult>> tasks = records ? recordTasks(files) : fileTasks(files);
+            while (tasks.hasNext() || !inFlight.isEmpty()) {
+                while (tasks.hasNext() && inFlight.size() < window) inFlight.add(pool.submit(tasks.next()));
+
+                FileResult r;
+                try { r = inFlight.poll().get(); }
+                catch (ExecutionException e) { throw new IOException(e.getCause()); }
+                count++;
+
+                if (r.failure != null) {
+                    failed++;
+                    System.err.println("FAILED " + r.file + ": " + r.failure);
+                    continue;
+                }
+                int e = r.count(Diagnostic.Level.ERROR);
+                errors += e;
+                warnings += r.count(Diagnostic.Level.WARNING);
+                if (e > 0) withErrors++;
+
+                if (nd != null) {
+                    long w0 = System.nanoTime();
+                    writeNdjsonLine(nd, r);
+                    writeNanos.add(System.nanoTime() - w0);
+                } else if (validate) {
+                    String where = r.record >= 0 ? r.file + "#" + r.record : r.file.toString();
+                    for (Diagnostic d : r.diagnostics) System.out.println(where + ": " + d);
+                }
+            }
+        } finally {
+            pool.shutdown();
+            if (nd != null) {
+                if ("-".equals(ndjson)) nd.flush();
+                else nd.close();
+            }
+        }
+
+        long elapsed = System.nanoTime() - t0;
+        printSummary(records ? "records" : "files", count, withErrors, failed, errors, warnings, elapsed);
+        if (compiler.metrics() != null) compiler.metrics().write(metricsOut);
+        return failed > 0 ? 3 : withErrors > 0 ? 2 : 0;
+    }
+
+    private Iterator<Callable<FileResult>> fileTasks(List<Path> files) {
+        Iterator<Path> it = files.iterator();
+        return new Iterator<Callable<FileResult>>() {
+            @Override public boolean hasNext() { return it.hasNext(); }
+            @Override public Callable<FileResult> next() {
+                Path f = it.next();
+                return () -> compileFile(f);
+            }
+        };
+    }
+
+    // Records are read lazily on the consuming thread, one stream after another.
+    private Iterator<Callable<FileResult>> recordTasks(List<Path> files) {
+        Iterator<Path> it = files.iterator();
+        return new Iterator<Callable<FileResult>>() {
+            private Path file;
+            private PrescriptionStream stream;
+            private PrescriptionStream.Record next;
+
+            @Override public boolean hasNext() {
+                try {
+                    while (next == null) {
+                        if (stream == null) {
+                            if (!it.hasNext()) return false;
+                            file = it.next();
+                            Reader r = "-".equals(file.toString())
+                                    ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                                    : Files.newBufferedReader(file, StandardCharsets.UTF_8);
+                            stream = new PrescriptionStream(r);
+                        }
+                        long t = System.nanoTime();
+                        next = stream.nextRecord();
+                        readNanos.add(System.nanoTime() - t);
+                        if (next == null) { stream.close(); stream = null; }
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override public Callable<FileResult> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                PrescriptionStream.Record rec = next;
+                Path f = file;
+                next = null;
+                bytesIn.add(utf8Length(rec.source));
+                return () -> {
+                    FileResult r = compile(f, f + "#" + rec.index, rec.source, System.nanoTime());
+                    r.record = rec.index;
+                    r.startLine = rec.startLine;
+                    return r;
+                };
+            }
+        };
+    }
+
+    private FileResult compileFile(Path file) {
+        try {
+            long t = System.nanoTime();
+            byte[] bytes = Files.readAllBytes(file);
+            bytesIn.add(bytes.length);
+            String input = new String(bytes, StandardCharsets.UTF_8);
+            long t1 = System.nanoTime(); readNanos.add(t1 - t);
+            return compile(file, file.toString(), input, t1);
+        } catch (IOException e) {
+            return new FileResult(file, null, List.of(), e.toString());
+        }
+    }
+
+    private FileResult compile(Path file, String origin, String input, long t1) {
+        try {
+            MedScriptCompiler.Result r = compiler.compile(input, origin);
+            long t2 = System.nanoTime();
+            lexNanos.add(r.lexNanos);
+            parseNanos.add(r.parseNanos);
+            semanticNanos.add(r.semanticNanos);
+            emitNanos.add(r.emitNanos);
+            // lookups, hashing and inserts: whatever the pipeline phases did not account for
+            if (compiler.cache() != null) cacheNanos.add(t2 - t1 - r.lexNanos - r.parseNanos - r.semanticNanos - r.emitNanos);
+
+            if (outDir != null) {
+                // NDJSON makes the compiler emit compact JSON; the files stay pretty
+                if (r.json != null && ndjson == null) {
+                    writeJson(file, r.json);
+                } else {
+                    // emitted straight into the file, so emit and write are timed together
+                    Path target = jsonTarget(file);
+                    Files.createDirectories(target.getParent());
+                    long t3 = System.nanoTime();
+                    try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(target))) {
+                        JsonEmitter.write(r.program, os, false, analyzer.formulary());
+                    }
+                    writeNanos.add(System.nanoTime() - t3);
+                }
+            }
+            return new FileResult(file, ndjson != null ? r.json : null, r.diagnostics, null);
+        } catch (IOException | RuntimeException e) {
+            return new FileResult(file, null, List.of(), e.toString());
+        }
+    }
+
+    private void writeJson(Path file, byte[] json) throws IOException {
+        Path target = jsonTarget(file);
+        Files.createDirectories(target.getParent());
+        long t = System.nanoTime();
+        Files.write(target, json);
+        writeNanos.add(System.nanoTime() - t);
+    }
+
+    private Path jsonTarget(Path file) throws IOException {
+        Path target = outDir.resolve(jsonPath(file));
+        if (!target.normalize().startsWith(outDir.normalize())) {
+            throw new IOException("Output for " + file + " would be written outside " + outDir + ": " + target);
+        }
+        return target;
+    }
+
+    // Mirrors the input path under --out-dir so same-named files do not collide.
+    // Leading '..' segments (left over after normalizing a relative path) become
+    // '_up', so ../x.med lands in <out-dir>/_up/x.json instead of next to it.
+    private static Path jsonPath(Path file) {
+        Path p = file.normalize();
+        if (p.getRoot() != null) p = p.getRoot().relativize(p);
+        String name = p.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String json = (dot > 0 ? name.substring(0, dot) : name) + ".json";
+        Path out = null;
+        for (int i = 0; i < p.getNameCount() - 1; i++) {
+            String dir = p.getName(i).toString();
+            if (dir.equals("..")) dir = "_up";
+            out = out == null ? Path.of(dir) : out.resolve(dir);
+        }
+        return out == null ? Path.of(json) : out.resolve(json);
+    }
+
+    // UTF-8 size of a record, as it was in the input file (MB/s counts bytes)
+    private static long utf8Length(String s) {
+        long n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) n++;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) { n += 4; i++; }
+            else n += 3;
+        }
+        return n;
+    }
+
+    private OutputStream openNdjson() throws IOException {
+        if (ndjson == null) return null;
+        OutputStream os = "-".equals(ndjson) ? System.out : Files.newOutputStream(Path.of(ndjson));
+        return new BufferedOutputStream(os, 1 << 16);
+    }
+
+    private static void writeNdjsonLine(OutputStream out, FileResult r) throws IOException {
+        StringBuilder w = new StringBuilder(256);
+        w.append("{\"file\":");
+        JsonEmitter.writeString(r.file.toString(), w);
+        if (r.record >= 0) w.append(",\"record\":").append(r.record).append(",\"line\":").append(r.startLine);
+        w.append(",\"diagnostics\":");
+        JsonEmitter.writeDiagnostics(r.diagnostics, w);
+        // --validate lines have no program
+        if (r.json != null) w.append(",\"program\":");
+        out.write(w.toString().getBytes(StandardCharsets.UTF_8));
+        if (r.json != null) out.write(r.json);
+        out.write('}');
+        out.write('\n');
+    }
+
+    private void printSummary(String unit, int files, int withErrors, int failed, long errors, long warnings, long elapsedNanos) {
+        double secs = elapsedNanos / 1e9;
+        System.err.println("=== BATCH SUMMARY ===");
+        System.err.printf("%s: %d (with errors: %d, failed: %d) on %d threads%n", unit, files, withErrors, failed, threads);
+        System.err.printf("diagnostics: %d errors, %d warnings%n", errors, warnings);
+        System.err.printf("elapsed: %.3f s, %.1f %s/s, %.2f MB/s%n", secs, files / secs, unit, bytesIn.sum() / 1e6 / secs);
+        System.err.println("phase time (summed over threads):");
+        printPhase("read", readNanos);
+        printPhase("lex", lexNanos);
+        printPhase("parse", parseNanos);
+        printPhase("semantic", semanticNanos);
+        printPhase("emit", emitNanos);
+        printPhase("write", writeNanos);
+        if (compiler.cache() != null) {
+            printPhase("cache", cacheNanos);
+            System.err.println("cache: " + compiler.cache().stats());
+        }
+        if (analyzer.isTiming()) {
+            System.err.println("semantic rules (summed over threads):");
+            for (SemanticAnalyzer.RuleStats r : analyzer.ruleStats()) {
+                System.err.printf("  %-18s %10.2f ms %8d diagnostics%n", r.id, r.nanos.sum() / 1e6, r.diagnostics.sum());
+            }
+        }
+    }
+
+    private static void printPhase(String name, LongAdder nanos) {
+        System.err.printf("  %-9s %10.2f ms%n", name, nanos.sum() / 1e6);
+    }
+
+    // Expands directories (recursively, *.med), glob patterns and @list files.
+    static List<Path> collectInputs(List<String> specs) throws IOException {
+        LinkedHashSet<Path> out = new LinkedHashSet<>();
+        for (String spec : specs) {
+            if (spec.startsWith("@")) {
+                for (String l : Files.readAllLines(Path.of(spec.substring(1)))) {
+                    l = l.trim();
+                    if (!l.isEmpty() && !l.startsWith("#")) out.addAll(collectInputs(List.of(l)));
+                }
+            } else if (isGlob(spec)) {
+                out.addAll(expandGlob(spec));
+            } else {
+                Path p = Path.of(spec);
+                if (Files.isDirectory(p)) {
+                    try (Stream<Path> s = Files.walk(p)) {
+                        s.filter(f -> Files.isRegularFile(f) && f.toString().endsWith(".med"))
+                         .sorted()
+                         .forEach(out::add);
+                    }
+                } else {
+                    out.add(p);
+                }
+            }
+        }
+        return new ArrayList<>(out);
+    }
+
+    private static boolean isGlob(String s) {
+        return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0 || s.indexOf('{') >= 0;
+    }
+
+    private static List<Path> expandGlob(String glob) throws IOException {
+        String norm = glob.replace('\\', '/');
+        int firstMeta = norm.length();
+        for (char c : new char[]{'*', '?', '[', '{'}) {
+            int i = norm.indexOf(c);
+            if (i >= 0) firstMeta = Math.min(firstMeta, i);
+        }
+        int slash = norm.lastIndexOf('/', firstMeta);
+        Path root = slash < 0 ? Path.of(".") : Path.of(norm.substring(0, slash + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + norm);
+        if (!Files.isDirectory(root)) return List.of();
+        try (Stream<Path> s = Files.walk(root)) {
+            return s.filter(Files::isRegularFile)
+                    .filter(f -> matcher.matches(slash < 0 ? root.relativize(f) : f))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package medscript.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import medscript.compiler.*;
+import medscript.compiler.AST.*;
+import medscript.compiler.Parser.*;
+
+// Per-phase and end-to-end throughput benchmarks for the compiler pipeline,
+// over inputs from CorpusGenerator.
+// Each case is warmed up, then run for a fixed time; ops/s, bytes allocated
+// per op and the allocation rate (from the thread allocation counter) are
+// reported, similar to JMH's throughput mode with the GC profiler.
+public class Benchmarks {
+
+    private static final String USAGE =
+            "Usage: java -cp out medscript.bench.Benchmarks [--phase lex|parse|semantic|emit|e2e|compile]... "
+            + "[--sizes 1,100,1000] [--shape clean|errors|all] [--warmup ms] [--time ms]";
+
+    enum Shape { CLEAN, ERRORS }
+
+    // fixed seed so every run measures the same inputs
+    private static final long SEED = 20240601L;
+
+    private static volatile long sink;
+
+    private final long warmupMillis;
+    private final long measureMillis;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    Benchmarks(long warmupMillis, long measureMillis) {
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Set<String> phases = new LinkedHashSet<>();
+        int[] sizes = {1, 10, 100, 1000, 5000};
+        List<Shape> shapes = Arrays.asList(Shape.values());
+        long warmup = 1000, time = 2000;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("--phase".equals(a) && i + 1 < args.length) phases.add(args[++i]);
+            else if ("--sizes".equals(a) && i + 1 < args.length) sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+            else if ("--shape".equals(a) && i + 1 < args.length) {
+                String s = args[++i];
+                shapes = "all".equals(s) ? Arrays.asList(Shape.values()) : List.of(Shape.valueOf(s.toUpperCase()));
+            }
+            else if ("--warmup".equals(a) && i + 1 < args.length) warmup = Long.parseLong(args[++i]);
+            else if ("--time".equals(a) && i + 1 < args.length) time = Long.parseLong(args[++i]);
+            else { System.err.println(USAGE); System.exit(1); }
+        }
+        if (phases.isEmpty()) phases.addAll(List.of("lex", "parse", "semantic", "emit", "e2e", "compile"));
+
+        Benchmarks b = new Benchmarks(warmup, time);
+        System.out.printf("%-9s %-7s %6s %10s %14s %14s %12s%n",
+                "phase", "shape", "meds", "bytes", "ops/s", "alloc B/op", "alloc MB/s");
+        for (Shape shape : shapes) {
+            for (int size : sizes) {
+                String input = input(size, shape);
+                for (String phase : phases) b.run(phase, shape, size, input);
+            }
+        }
+    }
+
+    // A generated prescription with 'meds' medication lines and meds/10 + 1 notes
+    // lines; error-heavy inputs mix syntax and semantic errors like
+    // samples/sample_syntax_error.med.
+    static String input(int meds, Shape shape) {
+        CorpusGenerator gen = new CorpusGenerator(SEED).notes(meds / 10 + 1);
+        if (shape == Shape.ERRORS) gen.syntaxErrorRate(0.5).semanticErrorRate(0.3);
+        return gen.prescription(meds);
+    }
+
+    private void run(String phase, Shape shape, int size, String input) throws IOException {
+        TokenBuffer tokens = TokenBuffer.lex(input);
+        Program program = new Parser(tokens).parse().program;
+        OutputStream discard = OutputStream.nullOutputStream();
+        SemanticAnalyzer sem = new SemanticAnalyzer();
+        MedScriptCompiler compiler = MedScriptCompiler.builder().build();
+
+        Op op;
+        switch (phase) {
+            case "lex": op = () -> TokenBuffer.lex(input).size(); break;
+            case "parse": op = () -> new Parser(tokens).parse().diagnostics.size(); break;
+            case "semantic": op = () -> sem.analyze(program).size(); break;
+            case "emit": op = () -> { JsonEmitter.write(program, discard, false); return 1; }; break;
+            case "e2e": op = () -> {
+                ParseResult pr = new Parser(TokenBuffer.lex(input)).parse();
+                List<Diagnostic> d = new SemanticAnalyzer().analyze(pr.program);
+                JsonEmitter.write(pr.program, discard, false);
+                return pr.diagnostics.size() + d.size();
+            }; break;
+            // e2e through the facade, which reuses per-thread token and JSON buffers
+            case "compile": op = () -> compiler.compile(input).diagnostics.size(); break;
+            default: throw new IllegalArgumentException("Unknown phase: " + phase);
+        }
+
+        measure(op, warmupMillis);
+        Result r = measure(op, measureMillis);
+        System.out.printf("%-9s %-7s %6d %10d %14.1f %14.0f %12.1f%n",
+                phase, shape.name().toLowerCase(), size, input.length(),
+                r.opsPerSecond(), r.bytesPerOp(), r.allocMBPerSecond());
+    }
+
+    interface Op { long run() throws IOException; }
+
+    static class Result {
+        final long ops;
+        final long nanos;
+        final long allocated;
+        Result(long ops, long nanos, long allocated) { this.ops = ops; this.nanos = nanos; this.allocated = allocated; }
+        double opsPerSecond() { return ops * 1e9 / nanos; }
+        double bytesPerOp() { return (double) allocated / ops; }
+        double allocMBPerSecond() { return allocated / 1e6 / (nanos / 1e9); }
+    }
+
+    private Result measure(Op op, long millis) throws IOException {
+        long tid = Thread.currentThread().getId();
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        long ops = 0, acc = 0;
+        long alloc0 = threads.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        long now;
+        do {
+            acc += op.run();
+            ops++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        long alloc = threads.getThreadAllocatedBytes(tid) - alloc0;
+        sink = acc;
+        return new Result(ops, now - t0, alloc);
+    }
+}
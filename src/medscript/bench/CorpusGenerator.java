@@ -0,0 +1,267 @@
+package medscript.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import medscript.compiler.PrescriptionStream;
+
+// Seeded generator of realistic MedScript prescriptions for load, scale and
+// benchmark runs. The same seed and settings always produce the same text.
+// Output covers every TokenType: all forms, routes, frequencies (incl. q<N>h),
+// units, duration units, food modifiers, decimal and fractional ('1/2') doses,
+// '5mg/5ml' strengths, extras flags, comments and colons in notes.
+public class CorpusGenerator {
+
+    private static final String USAGE =
+            "Usage: java -cp out medscript.bench.CorpusGenerator [--seed N] [--count N] [--meds MIN-MAX] "
+            + "[--syntax-errors RATE] [--semantic-errors RATE] [--out <file|-> | --out-dir <dir>]";
+
+    private static final String[] PATIENTS = {"Nimal", "Kamala", "Sunil", "Ayesha", "Ruwan", "Dilani", "Chamath", "Fathima"};
+    private static final String[] ALLERGIES = {"none", "penicillin", "sulfa", "aspirin", "latex", "nsaids"};
+    private static final String[] DRUGS = {"PCM", "Amox", "Cetirizine", "Hydrocortisone", "Ibuprofen", "Omeprazole",
+            "Metformin", "Salbutamol", "Ceftriaxone", "Diclofenac", "Loratadine", "Insulin"};
+    private static final String[] FORMS = {"Tab", "Cap", "Syr", "Inj", "Oint", "Drops", "Cream", "Neb"};
+    private static final String[] ROUTES = {"po", "iv", "im", "sc", "sl", "pr", "topical", "inhale"};
+    private static final String[] FREQS = {"od", "bd", "tds", "qid", "hs", "stat", "prn", "sos"};
+    private static final int[] INTERVALS = {4, 6, 8, 12, 24};
+    private static final String[] FOOD = {"ac", "pc", "with_meals", "after_food", "before_food"};
+    private static final String[] UNITS = {"mg", "g", "ml", "mcg", "IU", "%", "drops"};
+    private static final String[] DUR_UNITS = {"d", "w", "m"};
+    private static final String[] EXTRAS = {"crush", "urgent", "taper", "review"};
+    private static final String[] NOTES = {"avoid alcohol", "return if fever persists", "stop if rash",
+            "review: after 2 weeks", "take with plenty of water", "check BP weekly"};
+
+    private final Random random;
+    private int minMeds = 1;
+    private int maxMeds = 6;
+    private double syntaxErrorRate = 0;
+    private double semanticErrorRate = 0;
+    private int notesLines = -1;
+
+    public CorpusGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public CorpusGenerator meds(int min, int max) {
+        this.minMeds = min;
+        this.maxMeds = Math.max(min, max);
+        return this;
+    }
+
+    // probability that a medication line carries a syntax error
+    public CorpusGenerator syntaxErrorRate(double rate) {
+        this.syntaxErrorRate = rate;
+        return this;
+    }
+
+    // probability that a medication line carries a semantic error
+    public CorpusGenerator semanticErrorRate(double rate) {
+        this.semanticErrorRate = rate;
+        return this;
+    }
+
+    // a notes section of exactly this many lines; by default 0-3 lines, sometimes none
+    public CorpusGenerator notes(int lines) {
+        this.notesLines = lines;
+        return this;
+    }
+
+    public String prescription() {
+        return prescription(minMeds + random.nextInt(maxMeds - minMeds + 1));
+    }
+
+    public String prescription(int meds) {
+        StringBuilder sb = new StringBuilder(64 + meds * 40);
+        appendPrescription(sb, meds);
+        return sb.toString();
+    }
+
+    // Writes 'count' prescriptions as a '---'-separated stream (see PrescriptionStream).
+    public void writeStream(Appendable out, long count) throws IOException {
+        StringBuilder sb = new StringBuilder(1024);
+        for (long i = 0; i < count; i++) {
+            sb.setLength(0);
+            if (i > 0) sb.append(PrescriptionStream.SEPARATOR).append('\n');
+            appendPrescription(sb, minMeds + random.nextInt(maxMeds - minMeds + 1));
+            out.append(sb);
+        }
+    }
+
+    private void appendPrescription(StringBuilder sb, int meds) {
+        if (random.nextInt(4) == 0) sb.append("# generated prescription\n");
+
+        sb.append("patient ").append(pick(PATIENTS));
+        int age = random.nextInt(5) > 0 ? 1 + random.nextInt(90) : -1;
+        int weight = random.nextInt(5) > 0 ? 3 + random.nextInt(110) : -1;
+        if (age >= 0) sb.append(" age ").append(age);
+        if (weight >= 0) sb.append(" weight ").append(weight).append("kg");
+        sb.append('\n');
+
+        String allergy = pick(ALLERGIES);
+        sb.append("allergy ").append(allergy).append("\n\n");
+
+        sb.append("rx:\n");
+        // clean lines use distinct drug names that do not clash with the allergy
+        List<String> drugs = new ArrayList<>(Arrays.asList(DRUGS));
+        if ("penicillin".equals(allergy)) drugs.remove("Amox");
+        Collections.shuffle(drugs, random);
+        String previous = null;
+        for (int i = 0; i < meds; i++) {
+            sb.append("  ");
+            if (random.nextDouble() < syntaxErrorRate) appendBrokenMedication(sb);
+            else if (random.nextDouble() < semanticErrorRate) appendUnsafeMedication(sb, allergy, previous);
+            else {
+                String drug = drugs.get(i % drugs.size());
+                int round = i / drugs.size();
+                previous = round == 0 ? drug : drug + (round + 1);
+                if ("PCM".equals(drug)) appendParacetamol(sb, previous, age, weight);
+                else appendMedication(sb, previous);
+            }
+            if (random.nextInt(8) == 0) sb.append("  # ").append(pick(NOTES));
+            sb.append('\n');
+        }
+
+        if (notesLines > 0 || (notesLines < 0 && random.nextInt(3) > 0)) {
+            sb.append("notes:\n");
+            int n = notesLines > 0 ? notesLines : 1 + random.nextInt(3);
+            for (int i = 0; i < n; i++) sb.append("  ").append(pick(NOTES)).append('\n');
+        }
+    }
+
+    private void appendMedication(StringBuilder sb, String drug) {
+        String form = pick(FORMS);
+        sb.append(form).append(' ').append(drug).append(' ');
+        appendDose(sb, form);
+        if (random.nextInt(4) > 0) sb.append(' ').append(routeFor(form));
+        sb.append(' ').append(frequency());
+        sb.append(' ').append(1 + random.nextInt(14)).append(pick(DUR_UNITS));
+        if (random.nextInt(3) == 0) sb.append(' ').append(pick(FOOD));
+        if (random.nextInt(6) == 0) sb.append(' ').append(pick(EXTRAS));
+    }
+
+    // Paracetamol stays within the built-in dose limits: 1000mg single and
+    // 4000mg daily, 15mg/kg and 60mg/kg/day below 12 years.
+    private void appendParacetamol(StringBuilder sb, String drug, int age, int weight) {
+        int mg = new int[]{125, 250, 500, 650, 1000}[random.nextInt(5)];
+        if (age >= 0 && age < 12 && weight > 0) mg = Math.max(5, Math.min(mg, weight * 10 / 5 * 5));
+        String freq = frequency();
+        if (mg > 650 && "q4h".equals(freq)) freq = "qid";
+        sb.append(random.nextBoolean() ? "Tab " : "Syr ").append(drug).append(' ').append(mg).append("mg");
+        if (random.nextInt(4) > 0) sb.append(" po");
+        sb.append(' ').append(freq);
+        sb.append(' ').append(1 + random.nextInt(14)).append(pick(DUR_UNITS));
+        if (random.nextInt(3) == 0) sb.append(' ').append(pick(FOOD));
+    }
+
+    private void appendDose(StringBuilder sb, String form) {
+        switch (random.nextInt(6)) {
+            case 0: // liquid strength plus amount
+                sb.append(5 * (1 + random.nextInt(50))).append("mg/5ml ").append(5 * (1 + random.nextInt(4))).append("ml");
+                break;
+            case 1: // decimal
+                sb.append(random.nextInt(3)).append('.').append(1 + random.nextInt(9)).append(pick(UNITS));
+                break;
+            case 5: // fraction
+                sb.append(1 + random.nextInt(3)).append('/').append(2 + random.nextInt(3)).append(pick(UNITS));
+                break;
+            case 2: // percentage for topical forms
+                if ("Oint".equals(form) || "Cream".equals(form)) {
+                    sb.append(1 + random.nextInt(5)).append("% ");
+                } else {
+                    appendStrength(sb);
+                }
+                break;
+            default:
+                appendStrength(sb);
+                break;
+        }
+    }
+
+    private void appendStrength(StringBuilder sb) {
+        sb.append(new int[]{125, 250, 500, 650, 1000}[random.nextInt(5)]).append(pick(UNITS));
+    }
+
+    private String routeFor(String form) {
+        if ("Oint".equals(form) || "Cream".equals(form)) return "topical";
+        if ("Neb".equals(form)) return "inhale";
+        return pick(ROUTES);
+    }
+
+    private String frequency() {
+        if (random.nextInt(5) == 0) return "q" + INTERVALS[random.nextInt(INTERVALS.length)] + "h";
+        return pick(FREQS);
+    }
+
+    private void appendBrokenMedication(StringBuilder sb) {
+        switch (random.nextInt(6)) {
+            case 0: sb.append(pick(DRUGS)).append(" 500mg tds 5d"); break;            // missing form
+            case 1: sb.append("Tab 500mg po tds 5d"); break;                          // missing name
+            case 2: sb.append("Cap ").append(pick(DRUGS)).append(" 250mg po 7d"); break; // missing frequency
+            case 3: sb.append("Tab ").append(pick(DRUGS)).append(" 500mg po bd 5x"); break; // bad duration unit
+            case 4: sb.append("Tab ").append(pick(DRUGS)).append(" 1/0mg po od 5d"); break;    // zero denominator
+            default: sb.append("Syr ").append(pick(DRUGS)).append(" 5mg/ 10 po @@ bd 3d");
+        }
+    }
+
+    private void appendUnsafeMedication(StringBuilder sb, String allergy, String previous) {
+        switch (random.nextInt(6)) {
+            case 0: sb.append("Tab PCM ").append(1500 + 500 * random.nextInt(3)).append("mg po tds 5d"); break; // dose limit
+            case 1: sb.append("Oint Hydrocortisone 1% iv bd 7d"); break;                                      // route vs form
+            case 2: sb.append("Tab PCM 0mg po tds 5d"); break;                                                // non-positive dose
+            case 3: sb.append("Cap Amox 250mg po bd 0d"); break;                                              // non-positive duration
+            case 4: sb.append("Tab ").append(previous != null ? previous : "PCM").append(" 500mg po bd 5d"); break; // duplicate
+            default: sb.append("Cap ").append("penicillin".equals(allergy) ? "Amox" : "Amoxicillin").append(" 500mg po tds 7d"); // allergy
+        }
+    }
+
+    private String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = 42, count = 100;
+        int minMeds = 1, maxMeds = 6;
+        double syntax = 0, semantic = 0;
+        String out = "-";
+        Path outDir = null;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (i + 1 >= args.length) { System.err.println(USAGE); System.exit(1); }
+            String v = args[++i];
+            switch (a) {
+                case "--seed": seed = Long.parseLong(v); break;
+                case "--count": count = Long.parseLong(v); break;
+                case "--meds": {
+                    String[] mm = v.split("-");
+                    minMeds = Integer.parseInt(mm[0]);
+                    maxMeds = Integer.parseInt(mm[mm.length - 1]);
+                    break;
+                }
+                case "--syntax-errors": syntax = Double.parseDouble(v); break;
+                case "--semantic-errors": semantic = Double.parseDouble(v); break;
+                case "--out": out = v; break;
+                case "--out-dir": outDir = Path.of(v); break;
+                default: System.err.println(USAGE); System.exit(1);
+            }
+        }
+
+        CorpusGenerator gen = new CorpusGenerator(seed).meds(minMeds, maxMeds)
+                .syntaxErrorRate(syntax).semanticErrorRate(semantic);
+
+        if (outDir != null) {
+            Files.createDirectories(outDir);
+            int width = Long.toString(Math.max(0, count - 1)).length();
+            for (long i = 0; i < count; i++) {
+                String name = String.format("rx-%0" + width + "d.med", i);
+                Files.write(outDir.resolve(name), gen.prescription().getBytes(StandardCharsets.UTF_8));
+            }
+            return;
+        }
+
+        OutputStream os = "-".equals(out) ? System.out : Files.newOutputStream(Path.of(out));
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 1 << 16)) {
+            gen.writeStream(w, count);
+        }
+    }
+}
@@ -17,29 +17,195 @@ public class AST {
     }
 
     public static class Medication {
-        public String form;     
-        public String name;     
-        public Dose dose;       
-        public String route;    
-        public String freq;     
-        public Duration duration; 
-        public String foodMod; 
-        public Map<String, String> extras = new LinkedHashMap<>(); 
+        public Form form;
+        public String name;
+        public Dose dose;
+        public Route route;
+        public Frequency freq;
+        public Duration duration;
+        public FoodModifier foodMod;
+        // shared empty map until the first extra flag is parsed
+        public Map<String, String> extras = Collections.emptyMap();
+    }
+
+    public enum Form {
+        TAB("Tab"), CAP("Cap"), SYR("Syr"), INJ("Inj"), OINT("Oint"), DROPS("Drops"), CREAM("Cream"), NEB("Neb");
+
+        public final String symbol;
+
+        Form(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public boolean isTopical() {
+            return this == OINT || this == CREAM;
+        }
+    }
+
+    public enum Route {
+        PO("po"), IV("iv"), IM("im"), SC("sc"), SL("sl"), PR("pr"), TOPICAL("topical"), INHALE("inhale");
+
+        public final String symbol;
+
+        Route(String symbol) {
+            this.symbol = symbol;
+        }
+    }
+
+    public enum FoodModifier {
+        AC("ac", "before food"), PC("pc", "after food"), WITH_MEALS("with_meals", "with meals"),
+        AFTER_FOOD("after_food", "after food"), BEFORE_FOOD("before_food", "before food");
+
+        public final String symbol;
+        public final String expansion;
+
+        FoodModifier(String symbol, String expansion) {
+            this.symbol = symbol;
+            this.expansion = expansion;
+        }
+    }
+
+    // A named frequency (od, bd, ...) or an interval q<N>h; instances are shared.
+    public static final class Frequency {
+        public static final Frequency OD = new Frequency("od", 0, 1, "once daily");
+        public static final Frequency BD = new Frequency("bd", 0, 2, "twice daily");
+        public static final Frequency TDS = new Frequency("tds", 0, 3, "three times daily");
+        public static final Frequency QID = new Frequency("qid", 0, 4, "four times daily");
+        public static final Frequency HS = new Frequency("hs", 0, 1, "at night");
+        public static final Frequency STAT = new Frequency("stat", 0, 1, "immediately (stat)");
+        public static final Frequency PRN = new Frequency("prn", 0, 0, "as needed (prn)");
+        public static final Frequency SOS = new Frequency("sos", 0, 0, "if needed (sos)");
+
+        private static final Frequency[] NAMED = {OD, BD, TDS, QID, HS, STAT, PRN, SOS};
+        private static final Frequency[] INTERVALS = new Frequency[49];
+        static {
+            for (int h = 1; h < INTERVALS.length; h++) INTERVALS[h] = new Frequency("q" + h + "h", h, "every " + h + " hours");
+        }
+
+        public final String code;
+        public final int intervalHours;   // 0 for named frequencies
+        public final int dosesPerDay;     // most doses in 24 hours; 0 when only given as needed
+        public final String expansion;
+
+        private Frequency(String code, int intervalHours, int dosesPerDay, String expansion) {
+            this.code = code;
+            this.intervalHours = intervalHours;
+            this.dosesPerDay = dosesPerDay;
+            this.expansion = expansion;
+        }
+
+        private Frequency(String code, int intervalHours, String expansion) {
+            this(code, intervalHours, intervalHours <= 0 ? 0 : intervalHours >= 24 ? 1 : (23 + intervalHours) / intervalHours, expansion);
+        }
+
+        public static Frequency[] named() {
+            return NAMED.clone();
+        }
+
+        public static Frequency every(int hours) {
+            if (hours > 0 && hours < INTERVALS.length) return INTERVALS[hours];
+            return new Frequency("q" + hours + "h", hours, "every " + hours + " hours");
+        }
+
+        // q<N>h as written; digits with leading zeros or beyond int range keep their text.
+        public static Frequency interval(String code) {
+            String digits = code.substring(1, code.length() - 1);
+            if (digits.length() < 10 && !digits.startsWith("0")) return every(Integer.parseInt(digits));
+            int hours;
+            try { hours = Integer.parseInt(digits); } catch (NumberFormatException e) { hours = Integer.MAX_VALUE; }
+            return new Frequency(code, hours, "every " + digits + " hours");
+        }
+
+        @Override
+        public String toString() {
+            return code;
+        }
     }
 
     public static class Dose {
-        public String strength; 
-        public String amount;   
+        public Quantity strength = new Quantity();
+        public Quantity amount;
+
+        // Quantity given per administration in base units: the strength, or
+        // concentration x amount for liquids (5mg/5ml 10ml -> 10mg).
+        public double baseValue() {
+            Quantity per = strength.per;
+            if (per != null && amount != null && per.unit != null && amount.unit != null
+                    && per.unit.base() == amount.unit.base() && per.baseValue() > 0) {
+                return strength.baseValue() / per.baseValue() * amount.baseValue();
+            }
+            return strength.baseValue();
+        }
+    }
+
+    // A number as written with an optional unit: 500mg, 1/2 (a fraction) or 5mg/5ml
+    public static class Quantity {
+        public double number = Double.NaN;  // NaN when the number is missing
+        public double divisor = 1;          // 2 for the fraction 1/2
+        public String text;                 // the number as written ("2.50", "1/2"), null when missing
+        public Unit unit;
+        public Quantity per;                // the 5ml of 5mg/5ml
+
+        public double value() {
+            return number / divisor;
+        }
+
+        // value in mg, ml, IU, % or drops
+        public double baseValue() {
+            return unit == null ? value() : unit.toBase(value());
+        }
+    }
+
+    public enum Unit {
+        MG("mg", null, 1, 1),
+        G("g", MG, 1000, 1),
+        MCG("mcg", MG, 1, 1000),
+        ML("ml", null, 1, 1),
+        IU("IU", null, 1, 1),
+        PERCENT("%", null, 1, 1),
+        DROPS("drops", null, 1, 1);
+
+        public final String symbol;
+        private final Unit base;
+        private final int multiplier;
+        private final int divisor;
+
+        Unit(String symbol, Unit base, int multiplier, int divisor) {
+            this.symbol = symbol;
+            this.base = base;
+            this.multiplier = multiplier;
+            this.divisor = divisor;
+        }
+
+        public Unit base() {
+            return base == null ? this : base;
+        }
+
+        public double toBase(double v) {
+            return v * multiplier / divisor;
+        }
     }
 
     public static class Duration {
         public double value;
-        public String unit; 
+        public DurationUnit unit;
         public int toDaysRounded() {
-            if ("d".equals(unit)) return (int)Math.round(value);
-            if ("w".equals(unit)) return (int)Math.round(value * 7);
-            if ("m".equals(unit)) return (int)Math.round(value * 30);
-            return (int)Math.round(value);
+            if (unit == null) return (int)Math.round(value);
+            return (int)Math.round(value * unit.days);
+        }
+    }
+
+    public enum DurationUnit {
+        D("d", "days", 1), W("w", "weeks", 7), M("m", "months", 30);
+
+        public final String symbol;
+        public final String label;
+        public final int days;
+
+        DurationUnit(String symbol, String label, int days) {
+            this.symbol = symbol;
+            this.label = label;
+            this.days = days;
         }
     }
 }
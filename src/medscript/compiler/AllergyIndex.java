@@ -0,0 +1,194 @@
+package medscript.compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Inverted allergy index: every drug maps to the bitset of allergen classes it
+// conflicts with, so checking a medication against all of a patient's
+// allergies is one bitset intersection. Every drug class in the formulary is
+// also an allergen class containing its own drugs. Immutable once built and
+// safe to share between threads.
+// Source format: CSV lines 'allergen,drug' or 'allergen,class:<drug class>'.
+public final class AllergyIndex {
+
+    // set to a CSV path to replace the built-in conflict table
+    public static final String PROPERTY = "medscript.allergies";
+
+    private static final long[] NONE = new long[0];
+
+    private final Formulary formulary;
+    private final Map<String, Integer> allergenBits;   // folded allergen name -> bit
+    private final long[][] genericBits;                // per formulary generic index
+    private final Map<String, long[]> otherDrugBits;   // folded names outside the formulary
+    private final long contentHash;
+
+    private AllergyIndex(Formulary formulary, Map<String, Integer> allergenBits,
+                         long[][] genericBits, Map<String, long[]> otherDrugBits, long contentHash) {
+        this.formulary = formulary;
+        this.contentHash = contentHash;
+        this.allergenBits = allergenBits;
+        this.genericBits = genericBits;
+        this.otherDrugBits = otherDrugBits;
+    }
+
+    private static final class Holder {
+        static final AllergyIndex SHARED = loadShared();
+    }
+
+    // The process-wide index over Formulary.shared(): -Dmedscript.allergies or the built-in table.
+    public static AllergyIndex shared() {
+        return Holder.SHARED;
+    }
+
+    private static AllergyIndex loadShared() {
+        String path = System.getProperty(PROPERTY);
+        if (path == null || path.isBlank()) return builtIn(Formulary.shared());
+        try {
+            return load(Path.of(path), Formulary.shared());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load allergy table " + path, e);
+        }
+    }
+
+    public static AllergyIndex builtIn(Formulary formulary) {
+        return new Builder(formulary)
+                .add("penicillin", "amox")
+                .add("penicillin", "amoxicillin")
+                .build();
+    }
+
+    public static AllergyIndex load(Path csv, Formulary formulary) throws IOException {
+        try (Reader r = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+            return load(r, formulary);
+        }
+    }
+
+    public static AllergyIndex load(Reader reader, Formulary formulary) throws IOException {
+        BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        Builder b = new Builder(formulary);
+        String line;
+        int lineNo = 0;
+        while ((line = br.readLine()) != null) {
+            lineNo++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int comma = line.indexOf(',');
+            String allergen = comma < 0 ? "" : line.substring(0, comma).trim();
+            String drug = comma < 0 ? "" : line.substring(comma + 1).trim();
+            if (allergen.isEmpty() || drug.isEmpty()) {
+                throw new IOException("Invalid allergy line " + lineNo + ": expected 'allergen,drug' or 'allergen,class:<name>'");
+            }
+            if (drug.startsWith("class:")) b.addClass(allergen, drug.substring("class:".length()).trim());
+            else b.add(allergen, drug);
+        }
+        return b.build();
+    }
+
+    public Formulary formulary() {
+        return formulary;
+    }
+
+    // Changes whenever the formulary or the conflict entries change.
+    public String version() {
+        return formulary.version() + "-" + Long.toHexString(contentHash);
+    }
+
+    // Bit of an allergen name, or -1 when no drug conflicts with it.
+    public int allergenBit(String allergen) {
+        Integer bit = allergenBits.get(allergen.toLowerCase(Locale.ROOT));
+        return bit == null ? -1 : bit;
+    }
+
+    // Bitset of the given allergies, computed once per prescription.
+    public long[] allergenSet(Collection<String> allergies) {
+        long[] set = NONE;
+        for (String a : allergies) {
+            int bit = allergenBit(a);
+            if (bit < 0) continue;
+            if ((bit >> 6) >= set.length) set = Arrays.copyOf(set, (bit >> 6) + 1);
+            set[bit >> 6] |= 1L << bit;
+        }
+        return set;
+    }
+
+    // Allergen classes the drug conflicts with, by alias, generic or unlisted name.
+    public long[] drugSet(String drug) {
+        int g = formulary.genericIndex(drug);
+        long[] bits = g >= 0 ? genericBits[g]
+                : otherDrugBits.isEmpty() ? null : otherDrugBits.get(drug.toLowerCase(Locale.ROOT));
+        return bits == null ? NONE : bits;
+    }
+
+    public static boolean intersects(long[] a, long[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) if ((a[i] & b[i]) != 0) return true;
+        return false;
+    }
+
+    public static boolean contains(long[] set, int bit) {
+        return bit >= 0 && (bit >> 6) < set.length && (set[bit >> 6] & (1L << bit)) != 0;
+    }
+
+    public static final class Builder {
+        private final Formulary formulary;
+        private final Map<String, Integer> allergenBits = new HashMap<>();
+        private final Map<Integer, long[]> genericBits = new HashMap<>();
+        private final Map<String, long[]> otherDrugBits = new HashMap<>();
+        private final Map<String, List<Integer>> genericsByClass = new HashMap<>();
+        private long contentHash = 1125899906842597L;
+
+        public Builder(Formulary formulary) {
+            this.formulary = formulary;
+            for (int g = 0; g < formulary.genericCount(); g++) {
+                String c = formulary.drugClass(formulary.genericAt(g));
+                if (c == null) continue;
+                genericsByClass.computeIfAbsent(c, k -> new ArrayList<>()).add(g);
+                addGeneric(bit(c), g);
+            }
+        }
+
+        // Aliases and generic names both resolve to the formulary generic; other names are kept as given.
+        public Builder add(String allergen, String drug) {
+            contentHash = 31 * (31 * contentHash + allergen.hashCode()) + drug.hashCode();
+            int bit = bit(allergen);
+            int g = formulary.genericIndex(drug);
+            if (g >= 0) {
+                addGeneric(bit, g);
+            } else {
+                String key = drug.toLowerCase(Locale.ROOT);
+                otherDrugBits.put(key, set(otherDrugBits.get(key), bit));
+            }
+            return this;
+        }
+
+        public Builder addClass(String allergen, String drugClass) {
+            contentHash = 31 * (31 * contentHash + allergen.hashCode()) + ~drugClass.hashCode();
+            int bit = bit(allergen);
+            for (int g : genericsByClass.getOrDefault(drugClass.toLowerCase(Locale.ROOT), List.of())) addGeneric(bit, g);
+            return this;
+        }
+
+        private int bit(String allergen) {
+            return allergenBits.computeIfAbsent(allergen.toLowerCase(Locale.ROOT), k -> allergenBits.size());
+        }
+
+        private void addGeneric(int bit, int g) {
+            genericBits.put(g, set(genericBits.get(g), bit));
+        }
+
+        private static long[] set(long[] bits, int bit) {
+            if (bits == null) bits = new long[(bit >> 6) + 1];
+            else if ((bit >> 6) >= bits.length) bits = Arrays.copyOf(bits, (bit >> 6) + 1);
+            bits[bit >> 6] |= 1L << bit;
+            return bits;
+        }
+
+        public AllergyIndex build() {
+            long[][] byGeneric = new long[formulary.genericCount()][];
+            for (Map.Entry<Integer, long[]> e : genericBits.entrySet()) byGeneric[e.getKey()] = e.getValue();
+            return new AllergyIndex(formulary, new HashMap<>(allergenBits), byGeneric, new HashMap<>(otherDrugBits), contentHash);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package medscript.compiler;
+
+import java.util.*;
+import medscript.compiler.AST.*;
+import medscript.compiler.Parser.Diagnostic;
+import medscript.compiler.SemanticRule.Field;
+
+// The checks that ship with the compiler, in their reporting order.
+final class BuiltinRules {
+
+    private BuiltinRules() {
+    }
+
+    static List<SemanticRule> all() {
+        return List.of(new PatientName(), new Duplicate(), new PositiveDose(), new PositiveDuration(),
+                new RouteForm(), new DoseLimit(), new Allergy());
+    }
+
+    // Required patient name
+    static final class PatientName implements SemanticRule {
+        @Override public String id() { return "patient-name"; }
+        @Override public Set<Field> fields() { return EnumSet.of(Field.PATIENT); }
+
+        @Override
+        public void checkProgram(Program p, Object state, List<Diagnostic> out) {
+            if (p.patient.name == null || p.patient.name.isBlank()) {
+                out.add(Diagnostic.warn(1, 1, "Patient name is missing (add: patient <Name> ...)"));
+            }
+        }
+
+        @Override
+        public void checkMedication(Medication m, int index, Object state, List<Diagnostic> out) {
+        }
+    }
+
+    // Duplicate medication names, reported on every repeat
+    static final class Duplicate implements SemanticRule {
+        @Override public String id() { return "duplicate"; }
+        @Override public Set<Field> fields() { return EnumSet.of(Field.NAME, Field.MEDICATIONS); }
+
+        @Override
+        public Object prepare(Program p, SemanticAnalyzer analyzer) {
+            boolean[] repeat = new boolean[p.medications.size()];
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < repeat.length; i++) {
+                repeat[i] = !seen.add(p.medications.get(i).name.toLowerCase());
+            }
+            return repeat;
+        }
+
+        @Override
+        public void checkMedication(Medication m, int index, Object state, List<Diagnostic> out) {
+            if (((boolean[]) state)[index]) {
+                out.add(Diagnostic.warn(1,1, "Duplicate medication detected: " + m.name));
+            }
+        }
+    }
+
+    // Dose must be positive
+    static final class PositiveDose implements SemanticRule {
+        @Override public String id() { return "dose-positive"; }
+        @Override public Set<Field> fields() { return EnumSet.of(Field.NAME, Field.DOSE); }
+
+        @Override
+        public void checkMedication(Medication m, int index, Object state, List<Diagnostic> out) {
+            if (m.dose == null || !(m.dose.strength.value() > 0)) {
+                out.add(Diagnostic.error(1,1, "Dose must be positive for " + m.name));
+            }
+        }
+    }
+
+    // Duration must be >0
+    static final class PositiveDuration implements SemanticRule {
+        @Override public String id() { return "duration-positive"; }
+        @Override public Set<Field> fields() { return EnumSet.of(Field.NAME, Field.DURATION); }
+
+        @Override
+        public void checkMedication(Medication m, int index, Object state, List<Diagnostic> out) {
+            if (m.duration == null || m.duration.value <= 0) {
+                out.add(Diagnostic.error(1,1, "Duration must be > 0 for " + m.name));
+            }
+        }
+    }
+
+    // Route validation
+    static final class RouteForm implements SemanticRule {
+        @Override public String id() { return "route-form"; }
+        @Override public Set<Field> fields() { return EnumSet.of(Field.NAME, Field.FORM, Field.ROUTE); }
+
+        @Override
+        public void checkMedication(Medication m, int index, Object state, List<Diagnostic> out) {
+            if (m.route != null && m.form.isTopical() && (m.route == Route.IV || m.route == Route.IM)) {
+                out.add(Diagnostic.error(1,1, "Invalid route '" + m.route.symbol + "' for " + m.form.symbol + " " + m.name));
+            }
+        }
+    }
+
+    // Single, daily and per-kg dose limits and course length from the DoseLimitTable
+    static final class DoseLimit implements SemanticRule {
+        @Override public String id() { return "dose-limit"; }
+        @Override public Set<Field> fields() {
+            return EnumSet.of(Field.PATIENT, Field.NAME, Field.DOSE, Field.FREQUENCY, Field.DURATION);
+        }
+
+        private static final class State {
+            final DoseLimitTable table;
+            final Integer age;
+            final Double weightKg;
+
+            State(DoseLimitTable table, Patient patient) {
+                this.table = table;
+                this.age = patient.age;
+                this.weightKg = patient.weightKg != null && patient.weightKg > 0 ? patient.weightKg : null;
+            }
+        }
+
+        @Override
+        public Object prepare(Program p, SemanticAnalyzer analyzer) {
+            return new State(analyzer.doseLimits(), p.patient);
+        }
+
+        @Override
+        public void checkMedication(Medication m, int index, Object state, List<Diagnostic> out) {
+            State s = (State) state;
+            DoseLimitTable.Limits limits = s.table.limits(m.name);
+            if (limits == null) return;
+            DoseLimitTable.Band band = limits.band(s.age);
+
+            if (m.dose == null || m.dose.strength.unit == null || m.dose.strength.unit.base() != Unit.MG) return;
+            double mg = m.dose.baseValue();
+            if (!(mg > 0)) return;
+
+            if (mg > band.maxSingleMg) {
+                out.add(Diagnostic.warn(1,1, "High single dose for " + limits.drug + " (" + mg + "mg). Check safety limits."));
+            } else if (s.weightKg != null && mg / s.weightKg > band.maxSingleMgPerKg) {
+                out.add(Diagnostic.warn(1,1, "High single dose for " + limits.drug + " (" + round(mg / s.weightKg)
+                        + "mg/kg, max " + band.maxSingleMgPerKg + "mg/kg). Check safety limits."));
+            }
+
+            int doses = m.freq != null ? m.freq.dosesPerDay : 0;
+            if (doses > 0) {
+                double daily = mg * doses;
+                if (daily > band.maxDailyMg) {
+                    out.add(Diagnostic.warn(1,1, "High daily dose for " + limits.drug + " (" + daily + "mg/day, max "
+                            + band.maxDailyMg + "mg). Check safety limits."));
+                } else if (s.weightKg != null && daily / s.weightKg > band.maxDailyMgPerKg) {
+                    out.add(Diagnostic.warn(1,1, "High daily dose for " + limits.drug + " (" + round(daily / s.weightKg)
+                            + "mg/kg/day, max " + band.maxDailyMgPerKg + "mg/kg). Check safety limits."));
+                }
+            }
+
+            if (m.duration != null && m.duration.toDaysRounded() > band.maxDays) {
+                out.add(Diagnostic.warn(1,1, "Course too long for " + limits.drug + " (" + m.duration.toDaysRounded()
+                        + " days, max " + band.maxDays + ")."));
+            }
+        }
+
+        private static double round(double v) {
+            return Math.round(v * 10) / 10.0;
+        }
+    }
+
+    // Allergy conflicts (listed drugs, or an allergy to the drug's class)
+    static final class Allergy implements SemanticRule {
+        @Override public String id() { return "allergy"; }
+        @Override public Set<Field> fields() { return EnumSet.of(Field.NAME, Field.ALLERGIES); }
+
+        private static final class State {
+            final AllergyIndex index;
+            final String[] allergies;
+            final long[] patientAllergens;
+            final int[] allergyBits;
+
+            State(AllergyIndex index, Set<String> allergies) {
+                this.index = index;
+                this.allergies = allergies.toArray(new String[0]);
+                this.patientAllergens = index.allergenSet(allergies);
+                this.allergyBits = new int[this.allergies.length];
+                for (int i = 0; i < allergyBits.length; i++) allergyBits[i] = index.allergenBit(this.allergies[i]);
+            }
+        }
+
+        @Override
+        public Object prepare(Program p, SemanticAnalyzer analyzer) {
+            return new State(analyzer.allergies(), p.allergies);
+        }
+
+        @Override
+        public void checkMedication(Medication m, int index, Object state, List<Diagnostic> out) {
+            State s = (State) state;
+            long[] drugAllergens = s.index.drugSet(m.name);
+            if (!AllergyIndex.intersects(drugAllergens, s.patientAllergens)) return;
+            for (int i = 0; i < s.allergies.length; i++) {
+                if (AllergyIndex.contains(drugAllergens, s.allergyBits[i])) {
+                    out.add(Diagnostic.error(1,1, "Allergy conflict: patient allergy '" + s.allergies[i] + "' conflicts with " + m.name));
+                }
+            }
+        }
+    }
+}
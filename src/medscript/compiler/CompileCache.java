@@ -0,0 +1,369 @@
+package medscript.compiler;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import medscript.compiler.Parser.*;
+
+// Compile results keyed by a 128-bit hash of the normalized source plus a
+// version string (formulary, rule set, output layout), so repeat
+// prescriptions skip the whole pipeline. Memory is bounded by entry count and
+// by an estimate of entry bytes, evicting the least recently used. With a spill
+// directory every entry is also written to disk and read back on a memory
+// miss, so a restarted process starts warm. The directory is bounded too: past
+// maxDiskBytes the least recently used files are deleted (reads touch their
+// file, so the order carries over to the next process). Thread-safe.
+//
+// Entries read back from disk only hold diagnostics and JSON, not the parse
+// (see MedScriptCompiler.Result.program).
+// Entries are shared: callers must not modify the cached Program or lists.
+public final class CompileCache {
+
+    private static final int MAGIC = 0x4D534332; // "MSC2", diagnostics carry their rule
+    public static final long DEFAULT_DISK_BYTES = 1L << 30;
+
+    // A cached compile. 'parse' is null for entries read back from disk.
+    public static final class Entry {
+        public final ParseResult parse;
+        public final List<Diagnostic> diagnostics;   // syntax and semantic, in report order
+        public final byte[] json;                    // UTF-8 document in the owner's layout
+        final long weight;
+
+        public Entry(ParseResult parse, List<Diagnostic> diagnostics, byte[] json) {
+            this.parse = parse;
+            this.diagnostics = List.copyOf(diagnostics);
+            this.json = json;
+            long w = 96 + (json != null ? json.length : 0);
+            // the AST takes roughly twice its JSON size
+            if (parse != null && json != null) w += 2L * json.length;
+            for (Diagnostic d : diagnostics) w += 48 + 2L * d.message.length();
+            this.weight = w;
+        }
+    }
+
+    public static final class Key {
+        final long h1;
+        final long h2;
+
+        Key(long h1, long h2) {
+            this.h1 = h1;
+            this.h2 = h2;
+        }
+
+        @Override public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).h1 == h1 && ((Key) o).h2 == h2;
+        }
+
+        @Override public int hashCode() {
+            return Long.hashCode(h1);
+        }
+
+        @Override public String toString() {
+            return String.format("%016x%016x", h1, h2);
+        }
+    }
+
+    public static final class Stats {
+        public final long hits, misses, diskHits, evictions, entries, bytes;
+        // spill files currently on disk (0 for a memory-only cache)
+        public final long diskEntries, diskBytes;
+
+        Stats(long hits, long misses, long diskHits, long evictions, long entries, long bytes,
+              long diskEntries, long diskBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.diskHits = diskHits;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.diskEntries = diskEntries;
+            this.diskBytes = diskBytes;
+        }
+
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override public String toString() {
+            String s = String.format("hits %d (%d from disk), misses %d, hit rate %.1f%%, evictions %d, %d entries, ~%.1f MB",
+                    hits, diskHits, misses, hitRate() * 100, evictions, entries, bytes / 1e6);
+            return diskEntries == 0 ? s : s + String.format(", disk %d files, %.1f MB", diskEntries, diskBytes / 1e6);
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Path spillDir;
+    private final long maxDiskBytes;
+    private final long seed1;
+    private final long seed2;
+
+    private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes = 0;
+    // spill files and their sizes, least recently used first
+    private final LinkedHashMap<Path, Long> spilled = new LinkedHashMap<>(64, 0.75f, true);
+    private long diskBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // spillDir may be null for a memory-only cache
+    public CompileCache(int maxEntries, long maxBytes, Path spillDir, String version) throws IOException {
+        this(maxEntries, maxBytes, spillDir, DEFAULT_DISK_BYTES, version);
+    }
+
+    public CompileCache(int maxEntries, long maxBytes, Path spillDir, long maxDiskBytes, String version) throws IOException {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.spillDir = spillDir;
+        this.maxDiskBytes = Math.max(1, maxDiskBytes);
+        long[] h = hash(version, 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL);
+        this.seed1 = h[0];
+        this.seed2 = h[1];
+        if (spillDir != null) {
+            Files.createDirectories(spillDir);
+            scanSpill();
+        }
+    }
+
+    // Hash of the source with "\r\n" and blanks before a line break ignored,
+    // which never changes tokens, positions or output.
+    public Key key(CharSequence source) {
+        long[] h = hash(source, seed1, seed2);
+        return new Key(h[0], h[1]);
+    }
+
+    public Entry get(Key key) {
+        Entry e;
+        synchronized (map) {
+            e = map.get(key);
+        }
+        if (e == null && spillDir != null) {
+            e = readSpill(key);
+            if (e != null) {
+                diskHits.increment();
+                insert(key, e);
+            }
+        }
+        if (e != null) hits.increment();
+        else misses.increment();
+        return e;
+    }
+
+    public void put(Key key, Entry entry) {
+        insert(key, entry);
+        if (spillDir != null) writeSpill(key, entry);
+    }
+
+    // Returns the cached entry or compiles, caches and returns a new one.
+    // Concurrent misses on the same key may both compile; the results are equal.
+    public Entry computeIfAbsent(CharSequence source, Function<CharSequence, Entry> compiler) {
+        Key key = key(source);
+        Entry e = get(key);
+        if (e == null) {
+            e = compiler.apply(source);
+            put(key, e);
+        }
+        return e;
+    }
+
+    public Stats stats() {
+        synchronized (map) {
+            synchronized (spilled) {
+                return new Stats(hits.sum(), misses.sum(), diskHits.sum(), evictions.sum(), map.size(), bytes,
+                        spilled.size(), diskBytes);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+            bytes = 0;
+        }
+    }
+
+    private void insert(Key key, Entry entry) {
+        synchronized (map) {
+            Entry old = map.put(key, entry);
+            if (old != null) bytes -= old.weight;
+            bytes += entry.weight;
+            Iterator<Entry> it = map.values().iterator();
+            while ((map.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+                Entry eldest = it.next();
+                if (eldest == entry) break;   // a single oversized entry stays until the next insert
+                it.remove();
+                bytes -= eldest.weight;
+                evictions.increment();
+            }
+        }
+    }
+
+    private Path spillFile(Key key) {
+        return spillDir.resolve(key + ".mcc");
+    }
+
+    // Picks up the files earlier runs left, oldest first, and trims them to the budget.
+    private void scanSpill() throws IOException {
+        Map<Path, BasicFileAttributes> found = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spillDir, "*.mcc")) {
+            for (Path f : files) {
+                try {
+                    found.put(f, Files.readAttributes(f, BasicFileAttributes.class));
+                } catch (IOException e) {
+                    // removed meanwhile by another process
+                }
+            }
+        }
+        List<Path> oldestFirst = new ArrayList<>(found.keySet());
+        oldestFirst.sort(Comparator.comparing(f -> found.get(f).lastModifiedTime()));
+        for (Path f : oldestFirst) recordSpill(f, found.get(f).size());
+    }
+
+    // Adds (or refreshes) a spill file and deletes the least recently used ones over the budget.
+    private void recordSpill(Path file, long size) {
+        List<Path> victims = null;
+        synchronized (spilled) {
+            Long old = spilled.put(file, size);
+            diskBytes += size - (old != null ? old : 0);
+            Iterator<Map.Entry<Path, Long>> it = spilled.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && spilled.size() > 1) {
+                Map.Entry<Path, Long> eldest = it.next();
+                it.remove();
+                diskBytes -= eldest.getValue();
+                if (victims == null) victims = new ArrayList<>();
+                victims.add(eldest.getKey());
+            }
+        }
+        if (victims == null) return;
+        for (Path v : victims) {
+            try { Files.deleteIfExists(v); } catch (IOException ignored) { }
+        }
+    }
+
+    private void touchSpill(Path file) {
+        try {
+            recordSpill(file, Files.size(file));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // deleted meanwhile; the entry was read all the same
+        }
+    }
+
+    private void forgetSpill(Path file) {
+        synchronized (spilled) {
+            Long size = spilled.remove(file);
+            if (size != null) diskBytes -= size;
+        }
+    }
+
+    private void writeSpill(Key key, Entry e) {
+        Path file = spillFile(key);
+        if (e.json == null || Files.exists(file)) return;
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(spillDir, "spill", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(key.h1);
+                out.writeLong(key.h2);
+                out.writeInt(e.diagnostics.size());
+                for (Diagnostic d : e.diagnostics) {
+                    out.writeByte(d.level.ordinal());
+                    out.writeInt(d.line);
+                    out.writeInt(d.column);
+                    out.writeUTF(d.message);
+                    out.writeUTF(d.rule != null ? d.rule : "");
+                }
+                out.writeInt(e.json.length);
+                out.write(e.json);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            recordSpill(file, Files.size(file));
+        } catch (IOException ex) {
+            // the disk copy is only an optimisation; the entry stays in memory
+            try { if (tmp != null) Files.deleteIfExists(tmp); } catch (IOException ignored) { }
+        }
+    }
+
+    private Entry readSpill(Key key) {
+        Path file = spillFile(key);
+        if (!Files.exists(file)) {
+            forgetSpill(file);   // deleted by another process sharing the directory
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() == MAGIC && in.readLong() == key.h1 && in.readLong() == key.h2) {
+                int n = in.readInt();
+                List<Diagnostic> diags = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    Diagnostic.Level level = Diagnostic.Level.values()[in.readByte()];
+                    int line = in.readInt();
+                    int column = in.readInt();
+                    String message = in.readUTF();
+                    String rule = in.readUTF();
+                    Diagnostic d = level == Diagnostic.Level.ERROR ? Diagnostic.error(line, column, message)
+                            : Diagnostic.warn(line, column, message);
+                    diags.add(rule.isEmpty() ? d : d.withRule(rule));
+                }
+                byte[] json = new byte[in.readInt()];
+                in.readFully(json);
+                // a read counts as a use, here and for the next process's scan
+                touchSpill(file);
+                return new Entry(null, diags, json);
+            }
+        } catch (IOException | RuntimeException ex) {
+            return null;   // unreadable spill files count as misses
+        }
+        // an older format or a damaged file: drop it so writeSpill() can replace it
+        try {
+            Files.deleteIfExists(file);
+            forgetSpill(file);
+        } catch (IOException ignored) { }
+        return null;
+    }
+
+    // Two independently seeded 64-bit hashes over the normalized chars.
+    private static long[] hash(CharSequence s, long h1, long h2) {
+        int n = s.length();
+        long hashed = 0;
+        int pending = -1;   // start of a run of blanks that may precede a line break
+        for (int i = 0; i <= n; i++) {
+            char c = i < n ? s.charAt(i) : 0;
+            if (i < n && (c == ' ' || c == '\t' || c == '\f' || c == '\r')) {
+                if (pending < 0) pending = i;
+                continue;
+            }
+            if (pending >= 0) {
+                // trailing blanks at the very end move the EOF position, so they count
+                if (i == n || c != '\n') {
+                    for (int k = pending; k < i; k++) {
+                        char b = s.charAt(k);
+                        h1 = (h1 ^ b) * 0x100000001B3L;
+                        h2 = Long.rotateLeft(h2 ^ (b * 0x9E3779B97F4A7C15L), 29) * 0xBF58476D1CE4E5B9L;
+                    }
+                    hashed += i - pending;
+                }
+                pending = -1;
+            }
+            if (i == n) break;
+            h1 = (h1 ^ c) * 0x100000001B3L;
+            h2 = Long.rotateLeft(h2 ^ (c * 0x9E3779B97F4A7C15L), 29) * 0xBF58476D1CE4E5B9L;
+            hashed++;
+        }
+        return new long[]{mix(h1 ^ hashed), mix(h2 + hashed)};
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+}
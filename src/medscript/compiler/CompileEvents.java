@@ -0,0 +1,70 @@
+package medscript.compiler;
+
+import jdk.jfr.*;
+
+// JDK Flight Recorder events for the compile pipeline. They cost a branch while
+// no recording is running; phase events are only kept above 1 ms and compiles
+// above 20 ms unless a recording lowers the thresholds, e.g.
+//   java -XX:StartFlightRecording:medscript.Lex#threshold=0ms,filename=run.jfr ...
+public final class CompileEvents {
+
+    private CompileEvents() {
+    }
+
+    @Name("medscript.Lex")
+    @Label("Lex")
+    @Category({"MedScript", "Phases"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    public static final class Lex extends Event {
+        @Label("Input Chars") public int chars;
+        @Label("Tokens") public int tokens;
+    }
+
+    @Name("medscript.Parse")
+    @Label("Parse")
+    @Category({"MedScript", "Phases"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    public static final class Parse extends Event {
+        @Label("Tokens") public int tokens;
+        @Label("Medications") public int medications;
+        @Label("Diagnostics") public int diagnostics;
+    }
+
+    @Name("medscript.Semantic")
+    @Label("Semantic Analysis")
+    @Category({"MedScript", "Phases"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    public static final class Semantic extends Event {
+        @Label("Medications") public int medications;
+        @Label("Diagnostics") public int diagnostics;
+        @Label("Parallel") public boolean parallel;
+    }
+
+    @Name("medscript.Emit")
+    @Label("Emit JSON")
+    @Category({"MedScript", "Phases"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    public static final class Emit extends Event {
+        @Label("Medications") public int medications;
+        @Label("Compact") public boolean compact;
+    }
+
+    // One prescription through MedScriptCompiler.compile(), kept when it is slow.
+    @Name("medscript.SlowCompile")
+    @Label("Slow Compile")
+    @Category({"MedScript"})
+    @StackTrace(false)
+    @Threshold("20 ms")
+    public static final class SlowCompile extends Event {
+        @Label("Origin") @Description("File and record, when the caller named them") public String origin;
+        @Label("Input Chars") public int chars;
+        @Label("Tokens") public int tokens;
+        @Label("Medications") public int medications;
+        @Label("Diagnostics") public int diagnostics;
+        @Label("Cached") public boolean cached;
+    }
+}
@@ -0,0 +1,149 @@
+package medscript.compiler;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+import medscript.compiler.Parser.Diagnostic;
+
+// Counters and latency histograms for every compile of a MedScriptCompiler
+// built with metrics(...). Recording is a handful of LongAdder adds and one
+// histogram bucket per phase; a compiler without metrics records nothing.
+// Readable through JMX (register()) or as JSON (dump()).
+public final class CompileMetrics implements CompileMetricsMXBean {
+
+    private static final String[] PHASES = {"lex", "parse", "semantic", "emit", "compile"};
+    private static final int LEX = 0, PARSE = 1, SEMANTIC = 2, EMIT = 3, COMPILE = 4;
+
+    private final SemanticAnalyzer analyzer;
+    private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+    private final LongAdder compiles = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder inputChars = new LongAdder();
+    private final LongAdder outputBytes = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder medications = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder warnings = new LongAdder();
+    // semantic diagnostics of the recorded compiles by Diagnostic.rule
+    private final Map<String, LongAdder> byRule = new ConcurrentHashMap<>();
+
+    // 'analyzer' names the rules to report, zeros included; may be null
+    public CompileMetrics(SemanticAnalyzer analyzer) {
+        this.analyzer = analyzer;
+        for (int i = 0; i < phases.length; i++) phases[i] = new LatencyHistogram();
+    }
+
+    void record(int chars, MedScriptCompiler.Result r, long nanos) {
+        compiles.increment();
+        inputChars.add(chars);
+        if (r.json != null) outputBytes.add(r.json.length);
+        for (Diagnostic d : r.diagnostics) {
+            if (d.level == Diagnostic.Level.ERROR) errors.increment();
+            else warnings.increment();
+            if (d.rule != null) byRule.computeIfAbsent(d.rule, k -> new LongAdder()).increment();
+        }
+        phases[COMPILE].record(nanos);
+        // cache hits carry no phase times, and no Program when read from disk
+        if (r.cached) {
+            cacheHits.increment();
+            return;
+        }
+        tokens.add(r.tokenCount);
+        medications.add(r.program.medications.size());
+        phases[LEX].record(r.lexNanos);
+        phases[PARSE].record(r.parseNanos);
+        phases[SEMANTIC].record(r.semanticNanos);
+        phases[EMIT].record(r.emitNanos);
+    }
+
+    // Registers this object as medscript:type=CompileMetrics,name=<name>, replacing an earlier one.
+    public CompileMetrics register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName id = new ObjectName("medscript:type=CompileMetrics,name=" + ObjectName.quote(name));
+            if (server.isRegistered(id)) server.unregisterMBean(id);
+            server.registerMBean(this, id);
+            return this;
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register metrics MBean '" + name + "'", e);
+        }
+    }
+
+    // Writes dump() to a file, or to stdout for "-".
+    public void write(String target) throws IOException {
+        if ("-".equals(target)) System.out.println(dump());
+        else Files.writeString(Path.of(target), dump() + "\n");
+    }
+
+    @Override public long getCompiles() { return compiles.sum(); }
+    @Override public long getCacheHits() { return cacheHits.sum(); }
+    @Override public long getInputChars() { return inputChars.sum(); }
+    @Override public long getOutputBytes() { return outputBytes.sum(); }
+    @Override public long getTokens() { return tokens.sum(); }
+    @Override public long getMedications() { return medications.sum(); }
+    @Override public long getErrors() { return errors.sum(); }
+    @Override public long getWarnings() { return warnings.sum(); }
+
+    // tokens per second of lexing time
+    @Override public double getTokensPerSecond() {
+        double ms = phases[LEX].totalMillis();
+        return ms == 0 ? 0 : tokens.sum() / (ms / 1e3);
+    }
+
+    @Override public Map<String, Double> getMeanMillis() {
+        Map<String, Double> m = new LinkedHashMap<>();
+        for (int i = 0; i < PHASES.length; i++) m.put(PHASES[i], phases[i].meanMillis());
+        return m;
+    }
+
+    @Override public Map<String, Double> getP99Millis() {
+        Map<String, Double> m = new LinkedHashMap<>();
+        for (int i = 0; i < PHASES.length; i++) m.put(PHASES[i], phases[i].percentileMillis(0.99));
+        return m;
+    }
+
+    // Counted from the diagnostics of the compiles recorded here (cache hits too),
+    // so they add up with getErrors() and getWarnings() minus the syntax errors.
+    // The analyzer's rules come first in their order, then any other rule seen.
+    @Override public Map<String, Long> getDiagnosticsByRule() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        if (analyzer != null) {
+            for (SemanticRule r : analyzer.rules()) m.put(r.id(), 0L);
+        }
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(byRule).entrySet()) m.put(e.getKey(), e.getValue().sum());
+        return m;
+    }
+
+    @Override public String dump() {
+        StringBuilder w = new StringBuilder(1024);
+        w.append("{\"compiles\":").append(compiles.sum())
+         .append(",\"cacheHits\":").append(cacheHits.sum())
+         .append(",\"inputChars\":").append(inputChars.sum())
+         .append(",\"outputBytes\":").append(outputBytes.sum())
+         .append(",\"tokens\":").append(tokens.sum())
+         .append(",\"medications\":").append(medications.sum())
+         .append(",\"tokensPerSecond\":").append(String.format(Locale.ROOT, "%.0f", getTokensPerSecond()))
+         .append(",\"diagnostics\":{\"ERROR\":").append(errors.sum()).append(",\"WARNING\":").append(warnings.sum()).append('}')
+         .append(",\"rules\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> e : getDiagnosticsByRule().entrySet()) {
+            if (!first) w.append(',');
+            first = false;
+            w.append('"').append(e.getKey()).append("\":{\"diagnostics\":").append(e.getValue()).append('}');
+        }
+        w.append("},\"phases\":{");
+        for (int i = 0; i < PHASES.length; i++) {
+            LatencyHistogram h = phases[i];
+            if (i > 0) w.append(',');
+            w.append('"').append(PHASES[i]).append("\":{\"count\":").append(h.count())
+             .append(String.format(Locale.ROOT, ",\"totalMs\":%.3f,\"meanMs\":%.4f,\"p50Ms\":%.4f,\"p90Ms\":%.4f,\"p99Ms\":%.4f,\"maxMs\":%.4f}",
+                     h.totalMillis(), h.meanMillis(), h.percentileMillis(0.5), h.percentileMillis(0.9),
+                     h.percentileMillis(0.99), h.maxMillis()));
+        }
+        return w.append("}}").toString();
+    }
+}
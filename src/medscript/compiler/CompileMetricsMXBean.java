@@ -0,0 +1,22 @@
+package medscript.compiler;
+
+import java.util.Map;
+
+// JMX view of CompileMetrics (jconsole: medscript / CompileMetrics).
+public interface CompileMetricsMXBean {
+    long getCompiles();
+    long getCacheHits();
+    long getInputChars();
+    long getOutputBytes();
+    long getTokens();
+    long getMedications();
+    long getErrors();
+    long getWarnings();
+    double getTokensPerSecond();
+    // phase (lex, parse, semantic, emit, compile) -> milliseconds
+    Map<String, Double> getMeanMillis();
+    Map<String, Double> getP99Millis();
+    Map<String, Long> getDiagnosticsByRule();
+    // everything above as one JSON document
+    String dump();
+}
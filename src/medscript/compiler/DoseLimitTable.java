@@ -0,0 +1,217 @@
+package medscript.compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Maximum doses per drug, indexed by formulary generic so a medication's
+// limits are found in O(1) however many drugs the table covers. Each drug has
+// a default (adult) band and optional pediatric bands by age in years, whose
+// band for every age is resolved at build time. Limits are in mg. Immutable
+// once built and safe to share between threads.
+// Source format: CSV lines
+//   drug,min_age,max_age,max_single_mg,max_daily_mg,max_single_mg_per_kg,max_daily_mg_per_kg,max_days
+// with empty ages for the default band (max_age is exclusive) and empty limits for none.
+public final class DoseLimitTable {
+
+    // set to a CSV path to replace the built-in table
+    public static final String PROPERTY = "medscript.doselimits";
+
+    // ages below this may have their own band
+    static final int PEDIATRIC_AGES = 18;
+
+    public static final class Band {
+        public final double maxSingleMg;
+        public final double maxDailyMg;
+        public final double maxSingleMgPerKg;
+        public final double maxDailyMgPerKg;
+        public final int maxDays;
+
+        Band(double maxSingleMg, double maxDailyMg, double maxSingleMgPerKg, double maxDailyMgPerKg, int maxDays) {
+            this.maxSingleMg = maxSingleMg;
+            this.maxDailyMg = maxDailyMg;
+            this.maxSingleMgPerKg = maxSingleMgPerKg;
+            this.maxDailyMgPerKg = maxDailyMgPerKg;
+            this.maxDays = maxDays;
+        }
+    }
+
+    private static final Band UNLIMITED = new Band(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Integer.MAX_VALUE);
+
+    public static final class Limits {
+        public final String drug;
+        private final Band adult;
+        private final Band[] byAge;   // null when the drug has no pediatric bands
+
+        Limits(String drug, Band adult, Band[] byAge) {
+            this.drug = drug;
+            this.adult = adult;
+            this.byAge = byAge;
+        }
+
+        // Band for the patient's age in years; the default band when the age is unknown.
+        public Band band(Integer age) {
+            if (byAge == null || age == null || age < 0 || age >= byAge.length) return adult;
+            return byAge[age];
+        }
+    }
+
+    private final Formulary formulary;
+    private final Limits[] byGeneric;
+    private final Map<String, Limits> otherDrugs;   // folded names outside the formulary
+    private final long contentHash;
+
+    private DoseLimitTable(Formulary formulary, Limits[] byGeneric, Map<String, Limits> otherDrugs, long contentHash) {
+        this.formulary = formulary;
+        this.contentHash = contentHash;
+        this.byGeneric = byGeneric;
+        this.otherDrugs = otherDrugs;
+    }
+
+    private static final class Holder {
+        static final DoseLimitTable SHARED = loadShared();
+    }
+
+    // The process-wide table over Formulary.shared(): -Dmedscript.doselimits or the built-in table.
+    public static DoseLimitTable shared() {
+        return Holder.SHARED;
+    }
+
+    private static DoseLimitTable loadShared() {
+        String path = System.getProperty(PROPERTY);
+        if (path == null || path.isBlank()) return builtIn(Formulary.shared());
+        try {
+            return load(Path.of(path), Formulary.shared());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load dose limits " + path, e);
+        }
+    }
+
+    public static DoseLimitTable builtIn(Formulary formulary) {
+        return new Builder(formulary)
+                .add("paracetamol", null, null, 1000, 4000, Double.NaN, Double.NaN, 0)
+                .add("paracetamol", 0, 12, 1000, 4000, 15, 60, 0)
+                .build();
+    }
+
+    public static DoseLimitTable load(Path csv, Formulary formulary) throws IOException {
+        try (Reader r = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+            return load(r, formulary);
+        }
+    }
+
+    public static DoseLimitTable load(Reader reader, Formulary formulary) throws IOException {
+        BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        Builder b = new Builder(formulary);
+        String line;
+        int lineNo = 0;
+        while ((line = br.readLine()) != null) {
+            lineNo++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] f = line.split(",", -1);
+            if (f.length != 8 || f[0].isBlank()) {
+                throw new IOException("Invalid dose limit line " + lineNo + ": expected 8 columns "
+                        + "(drug,min_age,max_age,max_single_mg,max_daily_mg,max_single_mg_per_kg,max_daily_mg_per_kg,max_days)");
+            }
+            try {
+                Integer minAge = f[1].isBlank() ? null : Integer.valueOf(f[1].trim());
+                Integer maxAge = f[2].isBlank() ? null : Integer.valueOf(f[2].trim());
+                b.add(f[0].trim(), minAge, maxAge, limit(f[3]), limit(f[4]), limit(f[5]), limit(f[6]),
+                        f[7].isBlank() ? 0 : Integer.parseInt(f[7].trim()));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid dose limit line " + lineNo + ": " + e.getMessage(), e);
+            }
+        }
+        return b.build();
+    }
+
+    private static double limit(String field) {
+        return field.isBlank() ? Double.NaN : Double.parseDouble(field.trim());
+    }
+
+    public Formulary formulary() {
+        return formulary;
+    }
+
+    // Changes whenever the formulary or any limit changes.
+    public String version() {
+        return formulary.version() + "-" + Long.toHexString(contentHash);
+    }
+
+    // Limits for a drug by alias, generic or unlisted name, or null when it has none.
+    public Limits limits(String drug) {
+        int g = formulary.genericIndex(drug);
+        if (g >= 0) return byGeneric[g];
+        return otherDrugs.isEmpty() ? null : otherDrugs.get(drug.toLowerCase(Locale.ROOT));
+    }
+
+    public static final class Builder {
+        private final Formulary formulary;
+        // keyed by generic index (Integer) or folded unlisted name (String)
+        private final Map<Object, String> names = new LinkedHashMap<>();
+        private final Map<Object, Band> adult = new HashMap<>();
+        private final Map<Object, List<int[]>> ageRanges = new HashMap<>();
+        private final Map<Object, List<Band>> ageBands = new HashMap<>();
+        private long contentHash = 1125899906842597L;
+
+        public Builder(Formulary formulary) {
+            this.formulary = formulary;
+        }
+
+        // NaN or non-positive limits and maxDays <= 0 mean no limit. Later rows win for the same ages.
+        public Builder add(String drug, Integer minAge, Integer maxAge, double maxSingleMg, double maxDailyMg,
+                           double maxSingleMgPerKg, double maxDailyMgPerKg, int maxDays) {
+            contentHash = 31 * (31 * (31 * contentHash + drug.hashCode()) + Objects.hashCode(minAge)) + Objects.hashCode(maxAge);
+            for (double v : new double[]{maxSingleMg, maxDailyMg, maxSingleMgPerKg, maxDailyMgPerKg, maxDays}) {
+                contentHash = 31 * contentHash + Double.hashCode(v);
+            }
+            int g = formulary.genericIndex(drug);
+            Object key = g >= 0 ? (Object) g : drug.toLowerCase(Locale.ROOT);
+            names.putIfAbsent(key, g >= 0 ? formulary.genericAt(g) : drug);
+            Band band = new Band(orUnlimited(maxSingleMg), orUnlimited(maxDailyMg),
+                    orUnlimited(maxSingleMgPerKg), orUnlimited(maxDailyMgPerKg), maxDays > 0 ? maxDays : Integer.MAX_VALUE);
+            if (minAge == null && maxAge == null) {
+                adult.put(key, band);
+            } else {
+                int from = minAge == null ? 0 : minAge;
+                int to = maxAge == null ? PEDIATRIC_AGES : maxAge;
+                if (from < 0 || to > PEDIATRIC_AGES || from >= to) {
+                    throw new IllegalArgumentException("age band " + from + "-" + to + " must lie within 0-" + PEDIATRIC_AGES);
+                }
+                ageRanges.computeIfAbsent(key, k -> new ArrayList<>()).add(new int[]{from, to});
+                ageBands.computeIfAbsent(key, k -> new ArrayList<>()).add(band);
+            }
+            return this;
+        }
+
+        private static double orUnlimited(double limit) {
+            return Double.isNaN(limit) || limit <= 0 ? Double.POSITIVE_INFINITY : limit;
+        }
+
+        public DoseLimitTable build() {
+            Limits[] byGeneric = new Limits[formulary.genericCount()];
+            Map<String, Limits> other = new HashMap<>();
+            for (Map.Entry<Object, String> e : names.entrySet()) {
+                Object key = e.getKey();
+                Band def = adult.getOrDefault(key, UNLIMITED);
+                Band[] byAge = null;
+                List<int[]> ranges = ageRanges.get(key);
+                if (ranges != null) {
+                    byAge = new Band[PEDIATRIC_AGES];
+                    Arrays.fill(byAge, def);
+                    List<Band> bands = ageBands.get(key);
+                    for (int i = 0; i < ranges.size(); i++) {
+                        Arrays.fill(byAge, ranges.get(i)[0], ranges.get(i)[1], bands.get(i));
+                    }
+                }
+                Limits limits = new Limits(e.getValue(), def, byAge);
+                if (key instanceof Integer) byGeneric[(Integer) key] = limits;
+                else other.put((String) key, limits);
+            }
+            return new DoseLimitTable(formulary, byGeneric, other, contentHash);
+        }
+    }
+}
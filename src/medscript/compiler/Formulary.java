@@ -0,0 +1,322 @@
+package medscript.compiler;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Immutable, case-insensitive drug formulary: alias (brand or short name) ->
+// generic name -> drug class. Aliases live case-folded in one packed char
+// array addressed by an open-addressing hash table, so lookups never allocate,
+// one instance is shared by all threads, and the compiled binary form (see
+// main) loads with a handful of bulk array reads.
+// Source format: CSV lines 'alias,generic[,class]'.
+public final class Formulary {
+
+    // set to a CSV or compiled formulary path to replace the built-in formulary
+    public static final String PROPERTY = "medscript.formulary";
+
+    private static final int MAGIC = 0x4D534631; // "MSF1"
+
+    private final char[] keyChars;     // all folded aliases back to back
+    private final int[] slotStart;     // offset into keyChars per slot, -1 when empty
+    private final int[] slotLength;
+    private final int[] slotGeneric;   // generic index per slot
+    private final String[] generics;
+    private final int[] genericClass;  // class index per generic, -1 when unknown
+    private final String[] classes;
+    private final int mask;
+    private final int size;
+    private final long contentHash;
+
+    private Formulary(char[] keyChars, int[] slotStart, int[] slotLength, int[] slotGeneric,
+                      String[] generics, int[] genericClass, String[] classes, int size, long contentHash) {
+        this.keyChars = keyChars;
+        this.slotStart = slotStart;
+        this.slotLength = slotLength;
+        this.slotGeneric = slotGeneric;
+        this.generics = generics;
+        this.genericClass = genericClass;
+        this.classes = classes;
+        this.mask = slotStart.length - 1;
+        this.size = size;
+        this.contentHash = contentHash;
+    }
+
+    private static final class Holder {
+        static final Formulary SHARED = loadShared();
+    }
+
+    // The process-wide formulary: the file named by -Dmedscript.formulary, or the built-in one.
+    public static Formulary shared() {
+        return Holder.SHARED;
+    }
+
+    private static Formulary loadShared() {
+        String path = System.getProperty(PROPERTY);
+        if (path == null || path.isBlank()) return builtIn();
+        try {
+            return load(Path.of(path));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load formulary " + path, e);
+        }
+    }
+
+    public static Formulary builtIn() {
+        return new Builder()
+                .add("pcm", "Paracetamol", "analgesic")
+                .add("amox", "Amoxicillin", "penicillin")
+                .add("cetirizine", "Cetirizine", "antihistamine")
+                .add("hydrocortisone", "Hydrocortisone", "corticosteroid")
+                .build();
+    }
+
+    // Loads a compiled formulary or a CSV file, whichever the file contains.
+    public static Formulary load(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length >= 4 && ByteBuffer.wrap(bytes).getInt() == MAGIC) return readBinary(ByteBuffer.wrap(bytes));
+        return load(new StringReader(new String(bytes, StandardCharsets.UTF_8)));
+    }
+
+    public static Formulary load(Reader reader) throws IOException {
+        BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        Builder b = new Builder();
+        String line;
+        int lineNo = 0;
+        while ((line = br.readLine()) != null) {
+            lineNo++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int c1 = line.indexOf(',');
+            int c2 = c1 < 0 ? -1 : line.indexOf(',', c1 + 1);
+            String alias = c1 < 0 ? "" : line.substring(0, c1).trim();
+            String generic = c1 < 0 ? "" : (c2 < 0 ? line.substring(c1 + 1) : line.substring(c1 + 1, c2)).trim();
+            if (alias.isEmpty() || generic.isEmpty()) {
+                throw new IOException("Invalid formulary line " + lineNo + ": expected 'alias,generic[,class]'");
+            }
+            b.add(alias, generic, c2 < 0 ? null : line.substring(c2 + 1).trim());
+        }
+        return b.build();
+    }
+
+    // Generic name for an alias or generic name, or null if not in the formulary.
+    public String generic(CharSequence name) {
+        int slot = find(name);
+        return slot < 0 ? null : generics[slotGeneric[slot]];
+    }
+
+    public String genericOrSelf(String name) {
+        String g = generic(name);
+        return g == null ? name : g;
+    }
+
+    // Drug class (lower case) for an alias or generic name, or null if unknown.
+    public String drugClass(CharSequence name) {
+        int slot = find(name);
+        if (slot < 0) return null;
+        int c = genericClass[slotGeneric[slot]];
+        return c < 0 ? null : classes[c];
+    }
+
+    public boolean contains(CharSequence name) {
+        return find(name) >= 0;
+    }
+
+    // Index of the generic name in 0..genericCount()-1, or -1 if unknown.
+    public int genericIndex(CharSequence name) {
+        int slot = find(name);
+        return slot < 0 ? -1 : slotGeneric[slot];
+    }
+
+    public int genericCount() { return generics.length; }
+    public String genericAt(int index) { return generics[index]; }
+    public int size() { return size; }
+
+    // Content hash, so caches can tell formularies apart.
+    public String version() { return Long.toHexString(contentHash); }
+
+    private int find(CharSequence name) {
+        if (name == null) return -1;
+        int slot = hash(name) & mask;
+        int start;
+        while ((start = slotStart[slot]) >= 0) {
+            if (slotLength[slot] == name.length() && foldedEquals(start, name)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean foldedEquals(int start, CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (keyChars[start + i] != fold(s.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static int hash(CharSequence s) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= fold(s.charAt(i));
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static char fold(char c) {
+        if (c < 128) return (c >= 'A' && c <= 'Z') ? (char) (c + 32) : c;
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static String fold(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) sb.append(fold(s.charAt(i)));
+        return sb.toString();
+    }
+
+    // Compiled layout: the packed arrays as they are held in memory.
+    public void writeBinary(OutputStream out) throws IOException {
+        DataOutputStream d = new DataOutputStream(new BufferedOutputStream(out));
+        d.writeInt(MAGIC);
+        d.writeLong(contentHash);
+        d.writeInt(size);
+        d.writeInt(slotStart.length);
+        d.writeInt(keyChars.length);
+        for (char c : keyChars) d.writeChar(c);
+        for (int v : slotStart) d.writeInt(v);
+        for (int v : slotLength) d.writeInt(v);
+        for (int v : slotGeneric) d.writeInt(v);
+        writeStrings(d, generics);
+        for (int v : genericClass) d.writeInt(v);
+        writeStrings(d, classes);
+        d.flush();
+    }
+
+    private static void writeStrings(DataOutputStream d, String[] values) throws IOException {
+        int total = 0;
+        for (String s : values) total += s.length();
+        d.writeInt(values.length);
+        d.writeInt(total);
+        for (String s : values) d.writeChars(s);
+        for (String s : values) d.writeInt(s.length());
+    }
+
+    private static Formulary readBinary(ByteBuffer in) throws IOException {
+        try {
+            in.getInt();
+            long contentHash = in.getLong();
+            int size = in.getInt();
+            int cap = in.getInt();
+            char[] keyChars = new char[in.getInt()];
+            in.asCharBuffer().get(keyChars);
+            in.position(in.position() + keyChars.length * 2);
+            int[] slotStart = ints(in, cap);
+            int[] slotLength = ints(in, cap);
+            int[] slotGeneric = ints(in, cap);
+            String[] generics = readStrings(in);
+            int[] genericClass = ints(in, generics.length);
+            String[] classes = readStrings(in);
+            if (Integer.bitCount(cap) != 1) throw new IOException("Corrupt formulary: table size " + cap);
+            return new Formulary(keyChars, slotStart, slotLength, slotGeneric, generics, genericClass, classes, size, contentHash);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt formulary file", e);
+        }
+    }
+
+    private static int[] ints(ByteBuffer in, int n) {
+        int[] v = new int[n];
+        in.asIntBuffer().get(v);
+        in.position(in.position() + n * 4);
+        return v;
+    }
+
+    private static String[] readStrings(ByteBuffer in) {
+        String[] values = new String[in.getInt()];
+        char[] chars = new char[in.getInt()];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + chars.length * 2);
+        int[] lengths = ints(in, values.length);
+        for (int i = 0, off = 0; i < values.length; off += lengths[i], i++) {
+            values[i] = new String(chars, off, lengths[i]);
+        }
+        return values;
+    }
+
+    public static final class Builder {
+        private final Map<String, Integer> aliases = new LinkedHashMap<>();
+        private final Map<String, Integer> genericIndex = new HashMap<>();
+        private final List<String> generics = new ArrayList<>();
+        private final List<Integer> genericClass = new ArrayList<>();
+        private final Map<String, Integer> classIndex = new HashMap<>();
+        private final List<String> classes = new ArrayList<>();
+        private long contentHash = 1125899906842597L;
+
+        // Later entries for the same alias win; a generic is always an alias of itself.
+        public Builder add(String alias, String generic, String drugClass) {
+            String gKey = fold(generic);
+            Integer g = genericIndex.get(gKey);
+            if (g == null) {
+                g = generics.size();
+                genericIndex.put(gKey, g);
+                generics.add(generic);
+                genericClass.add(-1);
+                aliases.putIfAbsent(gKey, g);
+            }
+            if (drugClass != null && !drugClass.isEmpty()) {
+                String cKey = fold(drugClass);
+                Integer c = classIndex.get(cKey);
+                if (c == null) {
+                    c = classes.size();
+                    classIndex.put(cKey, c);
+                    classes.add(cKey);
+                }
+                genericClass.set(g, c);
+            }
+            aliases.put(fold(alias), g);
+            contentHash = 31 * (31 * (31 * contentHash + alias.hashCode()) + generic.hashCode())
+                    + (drugClass == null ? 0 : drugClass.hashCode());
+            return this;
+        }
+
+        public Formulary build() {
+            int n = aliases.size();
+            int cap = Integer.highestOneBit(Math.max(4, n * 2 - 1)) << 1;
+            int[] slotStart = new int[cap];
+            int[] slotLength = new int[cap];
+            int[] slotGeneric = new int[cap];
+            Arrays.fill(slotStart, -1);
+            int chars = 0;
+            for (String k : aliases.keySet()) chars += k.length();
+            char[] keyChars = new char[chars];
+            int off = 0;
+            for (Map.Entry<String, Integer> e : aliases.entrySet()) {
+                String k = e.getKey();
+                int slot = hash(k) & (cap - 1);
+                while (slotStart[slot] >= 0) slot = (slot + 1) & (cap - 1);
+                k.getChars(0, k.length(), keyChars, off);
+                slotStart[slot] = off;
+                slotLength[slot] = k.length();
+                slotGeneric[slot] = e.getValue();
+                off += k.length();
+            }
+            int[] gc = new int[generics.size()];
+            for (int i = 0; i < gc.length; i++) gc[i] = genericClass.get(i);
+            return new Formulary(keyChars, slotStart, slotLength, slotGeneric,
+                    generics.toArray(new String[0]), gc, classes.toArray(new String[0]), n, contentHash);
+        }
+    }
+
+    // Compiles a CSV formulary into the binary form accepted by load().
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java -cp out medscript.compiler.Formulary <formulary.csv> <formulary.bin>");
+            System.exit(1);
+        }
+        Formulary f = load(Path.of(args[0]));
+        try (OutputStream out = Files.newOutputStream(Path.of(args[1]))) {
+            f.writeBinary(out);
+        }
+        System.out.println("Compiled " + f.size() + " aliases, " + f.genericCount() + " generics, "
+                + f.classes.length + " classes into " + args[1]);
+    }
+}
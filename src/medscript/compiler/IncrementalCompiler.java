@@ -0,0 +1,236 @@
+package medscript.compiler;
+
+import java.io.*;
+import java.util.*;
+import medscript.compiler.AST.*;
+import medscript.compiler.Parser.*;
+
+// Recompiles one document as it is edited (an editor buffer, the GUI), redoing
+// only the work an edit touched:
+//   lexing    TokenBuffer.edit() re-lexes the edited lines and moves the others;
+//   parsing   parser steps (see Parser.step(): a section, an 'rx:' header, one
+//             medication) whose tokens all survived the edit are reused, with
+//             their diagnostics moved along with their lines;
+//   semantic  local rules only check the medications that were parsed again.
+// Program-wide rules, the "no medications" check and the JSON still see the
+// whole program, so every result equals a full compile of the same text.
+// Get one from MedScriptCompiler.incremental(); compile() calls are serialized.
+public final class IncrementalCompiler {
+
+    // A parser step of the last compile. It consumed tokens [start, end) and
+    // looked at 'end' to stop; what it added to the program is kept in parts.
+    private static final class Step {
+        final int start, end;
+        final boolean inRx, inRxAfter;
+        final boolean fixedPosition;
+        final List<Diagnostic> diagnostics;
+        // null when the step did not touch them
+        final Patient patient;
+        final List<String> allergies;
+        final List<Medication> medications;
+        final List<String> notes;
+        // the local rules' diagnostics for the step's medication, once checked
+        Diagnostic[][] checked;
+
+        Step(int start, int end, boolean inRx, boolean inRxAfter, boolean fixedPosition, List<Diagnostic> diagnostics,
+             Patient patient, List<String> allergies, List<Medication> medications, List<String> notes) {
+            this.start = start;
+            this.end = end;
+            this.inRx = inRx;
+            this.inRxAfter = inRxAfter;
+            this.fixedPosition = fixedPosition;
+            this.diagnostics = diagnostics;
+            this.patient = patient;
+            this.allergies = allergies;
+            this.medications = medications;
+            this.notes = notes;
+        }
+
+        Step moved(int tokens, int lines) {
+            if (tokens == 0 && lines == 0) return this;
+            List<Diagnostic> d = diagnostics;
+            if (lines != 0 && !d.isEmpty()) {
+                d = new ArrayList<>(diagnostics.size());
+                for (Diagnostic x : diagnostics) d.add(x.moved(lines));
+            }
+            Step s = new Step(start + tokens, end + tokens, inRx, inRxAfter, fixedPosition, d,
+                    patient, allergies, medications, notes);
+            s.checked = checked;
+            return s;
+        }
+
+        // the same updates Parser.step() made, in the same order
+        void addTo(Program p, List<Diagnostic> diags) {
+            diags.addAll(diagnostics);
+            if (patient != null) {
+                if (patient.name != null) p.patient.name = patient.name;
+                if (patient.age != null) p.patient.age = patient.age;
+                if (patient.weightKg != null) p.patient.weightKg = patient.weightKg;
+            }
+            if (allergies != null) p.allergies.addAll(allergies);
+            if (medications != null) p.medications.addAll(medications);
+            if (notes != null) p.notes.addAll(notes);
+        }
+    }
+
+    private final SemanticAnalyzer analyzer;
+    private final boolean semantic;
+    private final boolean emit;
+    private final boolean compact;
+    private final boolean resync;
+    private final int maxDiagnostics;
+    private final int maxErrors;
+    private final CompileMetrics metrics;
+
+    // state of the last compile
+    private TokenBuffer tokens;
+    private List<Step> steps = new ArrayList<>();
+    private int relexed, reparsed;
+
+    IncrementalCompiler(SemanticAnalyzer analyzer, boolean semantic, boolean emit, boolean compact,
+                        boolean resync, int maxDiagnostics, int maxErrors, CompileMetrics metrics) {
+        this.analyzer = analyzer;
+        this.semantic = semantic;
+        this.emit = emit;
+        this.compact = compact;
+        this.resync = resync;
+        this.maxDiagnostics = maxDiagnostics;
+        this.maxErrors = maxErrors;
+        this.metrics = metrics;
+    }
+
+    // Compiles the document's new text; the result keeps its tokens.
+    public synchronized MedScriptCompiler.Result compile(CharSequence source) {
+        long t0 = System.nanoTime();
+        TokenBuffer.Edit edit = tokens != null ? tokens.edit(source) : null;
+        TokenBuffer next = edit != null ? edit.tokens : TokenBuffer.lex(source);
+        relexed = edit != null ? edit.lexed : next.size();
+        long t1 = System.nanoTime();
+
+        // old steps that only looked at tokens the edit left alone, by their new start
+        Map<Integer, Step> reusable = new HashMap<>();
+        if (edit != null) {
+            for (Step s : steps) {
+                if (s.end >= edit.from && s.start < edit.oldEnd) continue;
+                int lines = edit.lineDelta(s.start);
+                // "Empty notes section" is always reported at 1:1
+                if (s.fixedPosition && lines != 0) continue;
+                int start = edit.map(s.start);
+                reusable.put(start, s.moved(start - s.start, lines));
+            }
+        }
+
+        Parser parser = new Parser(next).resync(resync).limit(maxDiagnostics, maxErrors);
+        Program program = new Program();
+        List<Diagnostic> diags = new ArrayList<>();
+        List<Step> nextSteps = new ArrayList<>(steps.size() + 8);
+        Program part = new Program();
+        List<Diagnostic> partDiags = new ArrayList<>();
+        int pos = 0;
+        boolean inRx = false;
+        reparsed = 0;
+        boolean stopped = false;
+        while (next.type(pos) != TokenType.EOF && !stopped) {
+            Step s = reusable.get(pos);
+            if (s == null || s.inRx != inRx) {
+                parser.seek(pos, inRx);
+                parser.step(part, partDiags);
+                s = capture(pos, inRx, parser, part, partDiags);
+                reparsed++;
+            }
+            s.addTo(program, diags);
+            nextSteps.add(s);
+            pos = s.end;
+            inRx = s.inRxAfter;
+            stopped = parser.limitReached(diags);
+        }
+        if (!stopped) {
+            Parser.finish(program, diags);
+            stopped = parser.limitReached(diags);
+        }
+        long t2 = System.nanoTime();
+
+        List<Diagnostic> all = diags;
+        if (semantic && !stopped) {
+            all = new ArrayList<>(diags);
+            all.addAll(analyze(program, nextSteps));
+            Parser.truncate(all, maxDiagnostics, maxErrors);
+        }
+        long t3 = System.nanoTime();
+
+        byte[] json = null;
+        if (emit) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+            try { JsonEmitter.write(program, out, compact, analyzer.formulary()); }
+            catch (IOException e) { throw new UncheckedIOException(e); }   // in-memory stream
+            json = out.toByteArray();
+        }
+        long t4 = System.nanoTime();
+
+        tokens = next;
+        steps = nextSteps;
+        MedScriptCompiler.Result r = new MedScriptCompiler.Result(program, all, json, next, next.size(), false,
+                t1 - t0, t2 - t1, t3 - t2, t4 - t3);
+        r.parse = new ParseResult(program, diags);
+        if (metrics != null) metrics.record(source.length(), r, t4 - t0);
+        return r;
+    }
+
+    // Medication steps hold one medication each; a reused one keeps its local diagnostics.
+    private List<Diagnostic> analyze(Program program, List<Step> steps) {
+        Diagnostic[][][] local = new Diagnostic[program.medications.size()][][];
+        int i = 0;
+        for (Step s : steps) if (s.medications != null) local[i++] = s.checked;
+        List<Diagnostic> diags = analyzer.analyze(program, local);
+        i = 0;
+        for (Step s : steps) if (s.medications != null) s.checked = local[i++];
+        return diags;
+    }
+
+    private static Step capture(int start, boolean inRx, Parser parser, Program part, List<Diagnostic> partDiags) {
+        Patient patient = null;
+        if (part.patient.name != null || part.patient.age != null || part.patient.weightKg != null) {
+            patient = part.patient;
+            part.patient = new Patient();
+        }
+        List<String> allergies = null;
+        if (!part.allergies.isEmpty()) {
+            allergies = new ArrayList<>(part.allergies);
+            part.allergies.clear();
+        }
+        List<Medication> medications = null;
+        if (!part.medications.isEmpty()) {
+            medications = List.copyOf(part.medications);
+            part.medications.clear();
+        }
+        List<String> notes = null;
+        if (!part.notes.isEmpty()) {
+            notes = List.copyOf(part.notes);
+            part.notes.clear();
+        }
+        List<Diagnostic> d = partDiags.isEmpty() ? List.of() : new ArrayList<>(partDiags);
+        partDiags.clear();
+        return new Step(start, parser.position(), inRx, parser.inRx(), parser.fixedPosition(), d,
+                patient, allergies, medications, notes);
+    }
+
+    // Forgets the last compile; the next one starts from scratch.
+    public synchronized void reset() {
+        tokens = null;
+        steps = new ArrayList<>();
+    }
+
+    // tokens lexed by the last compile
+    public synchronized int relexedTokens() {
+        return relexed;
+    }
+
+    // parser steps run by the last compile, out of steps()
+    public synchronized int reparsedSteps() {
+        return reparsed;
+    }
+
+    public synchronized int steps() {
+        return steps.size();
+    }
+}
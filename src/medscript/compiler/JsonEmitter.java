@@ -1,104 +1,322 @@
 package medscript.compiler;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import medscript.compiler.AST.*;
 
 public class JsonEmitter {
 
+    // Fixed parts of the document, pre-encoded for both layouts.
+    private static final class Fragment {
+        final String pretty;
+        final String compact;
+        final byte[] prettyBytes;
+        final byte[] compactBytes;
+        Fragment(String pretty, String compact) {
+            this.pretty = pretty;
+            this.compact = compact;
+            this.prettyBytes = pretty.getBytes(StandardCharsets.UTF_8);
+            this.compactBytes = compact.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final Fragment PATIENT_NAME = new Fragment("{\n  \"patient\": {\n    \"name\": ", "{\"patient\":{\"name\":");
+    private static final Fragment AGE = new Fragment(",\n    \"age\": ", ",\"age\":");
+    private static final Fragment WEIGHT = new Fragment(",\n    \"weightKg\": ", ",\"weightKg\":");
+    private static final Fragment ALLERGIES = new Fragment("\n  },\n  \"allergies\": [", "},\"allergies\":[");
+    private static final Fragment LIST_SEP = new Fragment(", ", ",");
+    private static final Fragment MEDICATIONS = new Fragment("],\n  \"medications\": [\n", "],\"medications\":[");
+    private static final Fragment FORM = new Fragment("    {\n      \"form\": ", "{\"form\":");
+    private static final Fragment SHORT_NAME = new Fragment(",\n      \"shortName\": ", ",\"shortName\":");
+    private static final Fragment NAME = new Fragment(",\n      \"name\": ", ",\"name\":");
+    private static final Fragment DOSE = new Fragment(",\n      \"dose\": ", ",\"dose\":");
+    private static final Fragment AMOUNT = new Fragment(",\n      \"amount\": ", ",\"amount\":");
+    private static final Fragment ROUTE = new Fragment(",\n      \"route\": ", ",\"route\":");
+    private static final Fragment FREQUENCY = new Fragment(",\n      \"frequency\": ", ",\"frequency\":");
+    private static final Fragment DURATION = new Fragment(",\n      \"duration\": ", ",\"duration\":");
+    private static final Fragment FOOD = new Fragment(",\n      \"food\": ", ",\"food\":");
+    private static final Fragment MED_CLOSE = new Fragment("\n    }", "}");
+    private static final Fragment MED_SEP = new Fragment(",", ",");
+    private static final Fragment MED_END = new Fragment("\n", "");
+    private static final Fragment NOTES = new Fragment("  ],\n  \"notes\": [", "],\"notes\":[");
+    private static final Fragment END = new Fragment("]\n}\n", "]}");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     public static String toJson(Program p) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\n");
+        StringBuilder sb = new StringBuilder(512);
+        try { write(p, sb, false); }
+        catch (IOException e) { throw new UncheckedIOException(e); } // StringBuilder never throws
+        return sb.toString();
+    }
+
+    // Generic names come from Formulary.shared(); compilers pass their analyzer's formulary.
+    public static void write(Program p, Appendable out, boolean compact) throws IOException {
+        write(p, out, compact, Formulary.shared());
+    }
+
+    public static void write(Program p, Appendable out, boolean compact, Formulary formulary) throws IOException {
+        CompileEvents.Emit event = new CompileEvents.Emit();
+        event.begin();
+        emit(p, new CharSink(out, compact), formulary);
+        commit(event, p, compact);
+    }
+
+    // Writes UTF-8 straight into the stream; the caller owns (and closes) it.
+    public static void write(Program p, OutputStream out, boolean compact) throws IOException {
+        write(p, out, compact, Formulary.shared());
+    }
+
+    public static void write(Program p, OutputStream out, boolean compact, Formulary formulary) throws IOException {
+        CompileEvents.Emit event = new CompileEvents.Emit();
+        event.begin();
+        Utf8Sink sink = new Utf8Sink(out, compact);
+        emit(p, sink, formulary);
+        sink.flush();
+        commit(event, p, compact);
+    }
+
+    private static void commit(CompileEvents.Emit event, Program p, boolean compact) {
+        if (!event.shouldCommit()) return;
+        event.medications = p.medications.size();
+        event.compact = compact;
+        event.commit();
+    }
+
+    // Compact [{"level":..,"line":..,"column":..,"message":..},...] for NDJSON and service responses.
+    public static void writeDiagnostics(List<Parser.Diagnostic> diags, Appendable out) throws IOException {
+        CharSink sink = new CharSink(out, true);
+        out.append('[');
+        for (int i = 0; i < diags.size(); i++) {
+            Parser.Diagnostic d = diags.get(i);
+            if (i > 0) out.append(',');
+            out.append("{\"level\":\"").append(d.level.name()).append("\",\"line\":").append(Integer.toString(d.line))
+               .append(",\"column\":").append(Integer.toString(d.column)).append(",\"message\":");
+            sink.string(d.message);
+            out.append('}');
+        }
+        out.append(']');
+    }
+
+    // A quoted, escaped JSON string (or null).
+    public static void writeString(String s, Appendable out) throws IOException {
+        new CharSink(out, true).string(s);
+    }
+
+    private static void emit(Program p, Sink out, Formulary formulary) throws IOException {
         // patient
-        sb.append("  \"patient\": {\n");
-        sb.append("    \"name\": ").append(q(p.patient.name)).append(",\n");
-        sb.append("    \"age\": ").append(p.patient.age == null ? "null" : p.patient.age).append(",\n");
-        sb.append("    \"weightKg\": ").append(p.patient.weightKg == null ? "null" : trimDouble(p.patient.weightKg)).append("\n");
-        sb.append("  },\n");
+        out.fragment(PATIENT_NAME);
+        out.string(p.patient.name);
+        out.fragment(AGE);
+        if (p.patient.age == null) out.ascii("null"); else out.number(p.patient.age);
+        out.fragment(WEIGHT);
+        if (p.patient.weightKg == null) out.ascii("null"); else out.number(p.patient.weightKg);
 
         // allergies
-        sb.append("  \"allergies\": [");
+        out.fragment(ALLERGIES);
         int ai=0;
         for (String a: p.allergies) {
-            if (ai++>0) sb.append(", ");
-            sb.append(q(a));
+            if (ai++>0) out.fragment(LIST_SEP);
+            out.string(a);
         }
-        sb.append("],\n");
 
         // meds
-        sb.append("  \"medications\": [\n");
+        out.fragment(MEDICATIONS);
         for (int i=0;i<p.medications.size();i++) {
             Medication m = p.medications.get(i);
-            sb.append("    {\n");
-            sb.append("      \"form\": ").append(q(m.form)).append(",\n");
-            sb.append("      \"shortName\": ").append(q(m.name)).append(",\n");
-            sb.append("      \"name\": ").append(q(SemanticAnalyzer.genericName(m.name))).append(",\n");
-            sb.append("      \"dose\": ").append(q(m.dose != null ? m.dose.strength : null)).append(",\n");
-            sb.append("      \"amount\": ").append(q(m.dose != null ? m.dose.amount : null)).append(",\n");
-            sb.append("      \"route\": ").append(q(m.route)).append(",\n");
-            sb.append("      \"frequency\": ").append(q(expandFrequency(m.freq))).append(",\n");
-            sb.append("      \"duration\": ").append(q(formatDuration(m.duration))).append(",\n");
-            sb.append("      \"food\": ").append(q(expandFood(m.foodMod))).append("\n");
-            sb.append("    }");
-            if (i < p.medications.size()-1) sb.append(",");
-            sb.append("\n");
-        }
-        sb.append("  ],\n");
+            out.fragment(FORM); out.string(m.form.symbol);
+            out.fragment(SHORT_NAME); out.string(m.name);
+            out.fragment(NAME); out.string(formulary.genericOrSelf(m.name));
+            out.fragment(DOSE); writeQuantity(m.dose != null ? m.dose.strength : null, out);
+            out.fragment(AMOUNT); writeQuantity(m.dose != null ? m.dose.amount : null, out);
+            out.fragment(ROUTE); out.string(m.route != null ? m.route.symbol : null);
+            out.fragment(FREQUENCY); out.string(m.freq != null ? m.freq.expansion : null);
+            out.fragment(DURATION); writeDuration(m.duration, out);
+            out.fragment(FOOD); out.string(m.foodMod != null ? m.foodMod.expansion : null);
+            out.fragment(MED_CLOSE);
+            if (i < p.medications.size()-1) out.fragment(MED_SEP);
+            out.fragment(MED_END);
+        }
 
         // notes
-        sb.append("  \"notes\": [");
+        out.fragment(NOTES);
         for (int i=0;i<p.notes.size();i++) {
-            if (i>0) sb.append(", ");
-            sb.append(q(p.notes.get(i)));
+            if (i>0) out.fragment(LIST_SEP);
+            out.string(p.notes.get(i));
         }
-        sb.append("]\n");
-
-        sb.append("}\n");
-        return sb.toString();
+        out.fragment(END);
     }
 
-    private static String q(String s) {
-        if (s == null) return "null";
-        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    // Written back in its source form: "1/2mg", "5mg/5ml", "2.50mg"; the digits are
+    // the lexemes, not the parsed doubles
+    private static void writeQuantity(Quantity q, Sink out) throws IOException {
+        if (q == null) { out.ascii("null"); return; }
+        out.ascii('"');
+        writeQuantityText(q, out);
+        out.ascii('"');
     }
 
-    private static String expandFrequency(String f) {
-        if (f == null) return null;
-        switch (f.toLowerCase()) {
-            case "od": return "once daily";
-            case "bd": return "twice daily";
-            case "tds": return "three times daily";
-            case "qid": return "four times daily";
-            case "hs": return "at night";
-            case "stat": return "immediately (stat)";
-            case "prn": return "as needed (prn)";
-            case "sos": return "if needed (sos)";
-            default:
-                if (f.toLowerCase().startsWith("q") && f.toLowerCase().endsWith("h")) return "every " + f.substring(1, f.length()-1) + " hours";
-                return f;
+    private static void writeQuantityText(Quantity q, Sink out) throws IOException {
+        if (q.text != null) {
+            out.ascii(q.text);
+        } else if (!Double.isNaN(q.number)) {
+            out.number(q.number);
+            if (q.divisor != 1) { out.ascii('/'); out.number(q.divisor); }
         }
-    }
-
-    private static String expandFood(String fm) {
-        if (fm == null) return null;
-        switch (fm.toLowerCase()) {
-            case "ac": return "before food";
-            case "pc": return "after food";
-            case "with_meals": return "with meals";
-            case "after_food": return "after food";
-            case "before_food": return "before food";
-            default: return fm;
+        if (q.unit != null) out.ascii(q.unit.symbol);
+        if (q.per != null) {
+            out.ascii('/');
+            writeQuantityText(q.per, out);
         }
     }
 
-    private static String formatDuration(Duration d) {
-        if (d == null) return null;
-        String u = d.unit;
-        String name = "d".equals(u) ? "days" : "w".equals(u) ? "weeks" : "months";
-        return trimDouble(d.value) + " " + name;
+    private static void writeDuration(Duration d, Sink out) throws IOException {
+        if (d == null) { out.ascii("null"); return; }
+        out.ascii('"');
+        out.number(d.value);
+        if (d.unit != null) { out.ascii(' '); out.ascii(d.unit.label); }
+        out.ascii('"');
     }
 
     private static String trimDouble(double v) {
         if (Math.abs(v - Math.round(v)) < 1e-9) return String.valueOf((long)Math.round(v));
         return String.valueOf(v);
     }
+
+    // Destination of the emitted document.
+    private abstract static class Sink {
+        final boolean compact;
+        Sink(boolean compact) { this.compact = compact; }
+
+        abstract void fragment(Fragment f) throws IOException;
+        abstract void ascii(String s) throws IOException;
+        abstract void ascii(char c) throws IOException;
+        // s[from, to) with JSON string escaping, without the quotes
+        abstract void text(String s, int from, int to) throws IOException;
+
+        final void string(String s) throws IOException {
+            if (s == null) { ascii("null"); return; }
+            ascii('"');
+            text(s, 0, s.length());
+            ascii('"');
+        }
+
+        final void number(double v) throws IOException {
+            if (Math.abs(v - Math.round(v)) < 1e-9) number(Math.round(v));
+            else ascii(trimDouble(v));
+        }
+
+        final void number(long v) throws IOException {
+            if (v < 0) {
+                if (v == Long.MIN_VALUE) { ascii(Long.toString(v)); return; }
+                ascii('-');
+                v = -v;
+            }
+            if (v >= 10) number(v / 10);
+            ascii((char) ('0' + (int) (v % 10)));
+        }
+
+        // Escape sequence for c, or null when c can be written as is.
+        static String escape(char c) {
+            switch (c) {
+                case '"': return "\\\"";
+                case '\\': return "\\\\";
+                case '\n': return "\\n";
+                case '\r': return "\\r";
+                case '\t': return "\\t";
+                case '\b': return "\\b";
+                case '\f': return "\\f";
+                default:
+                    if (c < 0x20) return "\\u00" + HEX[c >> 4] + HEX[c & 0xF];
+                    return null;
+            }
+        }
+    }
+
+    private static final class CharSink extends Sink {
+        private final Appendable out;
+        CharSink(Appendable out, boolean compact) { super(compact); this.out = out; }
+
+        @Override void fragment(Fragment f) throws IOException { out.append(compact ? f.compact : f.pretty); }
+        @Override void ascii(String s) throws IOException { out.append(s); }
+        @Override void ascii(char c) throws IOException { out.append(c); }
+
+        @Override void text(String s, int from, int to) throws IOException {
+            int run = from;
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x20 && c != '"' && c != '\\') continue;
+                if (i > run) out.append(s, run, i);
+                out.append(escape(c));
+                run = i + 1;
+            }
+            if (to > run) out.append(s, run, to);
+        }
+    }
+
+    private static final class Utf8Sink extends Sink {
+        private final OutputStream out;
+        private final byte[] buf = new byte[8192];
+        private int pos = 0;
+
+        Utf8Sink(OutputStream out, boolean compact) { super(compact); this.out = out; }
+
+        @Override void fragment(Fragment f) throws IOException { bytes(compact ? f.compactBytes : f.prettyBytes); }
+
+        @Override void ascii(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) ascii(s.charAt(i));
+        }
+
+        @Override void ascii(char c) throws IOException {
+            if (pos == buf.length) drain();
+            buf[pos++] = (byte) c;
+        }
+
+        @Override void text(String s, int from, int to) throws IOException {
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                if (pos + 4 > buf.length) drain();
+                if (c < 0x80) {
+                    if (c >= 0x20 && c != '"' && c != '\\') buf[pos++] = (byte) c;
+                    else ascii(escape(c));
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired surrogate: same replacement as String.getBytes(UTF_8)
+                    buf[pos++] = (byte) '?';
+                } else {
+                    buf[pos++] = (byte) (0xE0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private void bytes(byte[] b) throws IOException {
+            if (b.length > buf.length - pos) {
+                drain();
+                if (b.length > buf.length) { out.write(b); return; }
+            }
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        private void drain() throws IOException {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+
+        void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+    }
 }
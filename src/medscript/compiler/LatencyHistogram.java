@@ -0,0 +1,70 @@
+package medscript.compiler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free latency histogram with four buckets per power of two nanoseconds
+// (at most 25% relative error), enough for p50/p99 on a live service.
+public final class LatencyHistogram {
+
+    private static final int MAX_EXPONENT = 44;   // ~4.9 hours
+    private static final int BUCKETS = 4 * MAX_EXPONENT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        sumNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public double totalMillis() {
+        return sumNanos.sum() / 1e6;
+    }
+
+    public double meanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : sumNanos.sum() / 1e6 / n;
+    }
+
+    public double maxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    // Upper bound of the bucket holding the given quantile (0..1).
+    public double percentileMillis(double q) {
+        long n = count.sum();
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank) return Math.min(upperBound(b), maxNanos.get()) / 1e6;
+        }
+        return maxMillis();
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < 4) return (int) nanos;
+        int e = 63 - Long.numberOfLeadingZeros(nanos);
+        if (e >= MAX_EXPONENT) return BUCKETS - 1;
+        return 4 * (e - 1) + (int) ((nanos >> (e - 2)) & 3);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < 4) return bucket;
+        int e = bucket / 4 + 1;
+        long sub = bucket % 4;
+        return ((4 + sub + 1) << (e - 2)) - 1;
+    }
+}
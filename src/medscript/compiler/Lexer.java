@@ -0,0 +1,6 @@
+package medscript.compiler;
+
+public interface Lexer {
+    // Returns the next token; keeps returning EOF once the input is exhausted.
+    Token nextToken();
+}
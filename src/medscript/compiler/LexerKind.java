@@ -0,0 +1,25 @@
+package medscript.compiler;
+
+import java.io.*;
+import java.util.Locale;
+
+public enum LexerKind {
+    // hand-written scanner (src/medscript/compiler/MedLexer.java)
+    HAND,
+    // table-driven DFA generated by JFlex from jflex/MedLexer.flex (scripts/gen-jflex.sh)
+    JFLEX;
+
+    public Lexer create(Reader reader) throws IOException {
+        return this == HAND ? new MedLexer(reader) : new JFlexMedLexer(reader);
+    }
+
+    // Lexes the whole input once into a TokenBuffer for the Parser and token views.
+    public TokenBuffer tokenize(CharSequence input) throws IOException {
+        if (this == HAND) return TokenBuffer.lex(input);
+        return TokenBuffer.of(create(new StringReader(input.toString())));
+    }
+
+    public static LexerKind parse(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
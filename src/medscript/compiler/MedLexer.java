@@ -1,110 +1,265 @@
 package medscript.compiler;
 
 import java.io.*;
-import java.util.*;
-import java.util.regex.*;
 
 
-public class MedLexer {
-    private final String input;
+public class MedLexer implements Lexer {
+    private final CharSequence input;
+    private final int length;
     private int index = 0;
     private int line = 1;
     private int col = 1;
 
-    private static final Pattern WS = Pattern.compile("^[ \t\f\r\n]+");
-    private static final Pattern COMMENT = Pattern.compile("^#.*(?:\\R|$)");
+    // end offset of the token recognised by the last scan()
+    private int tokenEnd;
+    // an ID attempt starting before this offset is known to fail (see matchId)
+    private int idDeadEnd = -1;
 
-    private static final Pattern SECTION_RX = Pattern.compile("^rx:");
-    private static final Pattern SECTION_NOTES = Pattern.compile("^notes:");
-    private static final Pattern SECTION_PATIENT = Pattern.compile("^patient\\b");
-    private static final Pattern SECTION_ALLERGY = Pattern.compile("^allergy\\b");
+    // Keyword rules in the same priority order as the original regex cascade:
+    // sections, FORM, ROUTE, FREQ, FOOD, UNIT, DURUNIT. A rule only applies when
+    // followed by a word boundary, except for the 'rx:' / 'notes:' sections.
+    private static final String[] KEYWORDS = {
+        "rx:", "notes:", "patient", "allergy",
+        "Tab", "Cap", "Syr", "Inj", "Oint", "Drops", "Cream", "Neb",
+        "po", "iv", "im", "sc", "sl", "pr", "topical", "inhale",
+        "od", "bd", "tds", "qid", "hs", "stat", "prn", "sos",
+        "ac", "pc", "with_meals", "after_food", "before_food",
+        "mg", "g", "ml", "mcg", "IU", "%", "drops",
+        "d", "w", "m"
+    };
+    private static final TokenType[] KEYWORD_TYPES = {
+        TokenType.SECTION_RX, TokenType.SECTION_NOTES, TokenType.SECTION_PATIENT, TokenType.SECTION_ALLERGY,
+        TokenType.FORM, TokenType.FORM, TokenType.FORM, TokenType.FORM, TokenType.FORM, TokenType.FORM, TokenType.FORM, TokenType.FORM,
+        TokenType.ROUTE, TokenType.ROUTE, TokenType.ROUTE, TokenType.ROUTE, TokenType.ROUTE, TokenType.ROUTE, TokenType.ROUTE, TokenType.ROUTE,
+        TokenType.FREQUENCY, TokenType.FREQUENCY, TokenType.FREQUENCY, TokenType.FREQUENCY,
+        TokenType.FREQUENCY, TokenType.FREQUENCY, TokenType.FREQUENCY, TokenType.FREQUENCY,
+        TokenType.FOOD_MOD, TokenType.FOOD_MOD, TokenType.FOOD_MOD, TokenType.FOOD_MOD, TokenType.FOOD_MOD,
+        TokenType.UNIT, TokenType.UNIT, TokenType.UNIT, TokenType.UNIT, TokenType.UNIT, TokenType.UNIT, TokenType.UNIT,
+        TokenType.DURATION_UNIT, TokenType.DURATION_UNIT, TokenType.DURATION_UNIT
+    };
 
-    private static final Pattern FORM = Pattern.compile("^(Tab|Cap|Syr|Inj|Oint|Drops|Cream|Neb)\\b");
-
-    private static final Pattern ROUTE = Pattern.compile("^(po|iv|im|sc|sl|pr|topical|inhale)\\b");
-    private static final Pattern FREQ = Pattern.compile("^(od|bd|tds|qid|hs|stat|prn|sos|q[0-9]+h)\\b");
-    private static final Pattern FOOD = Pattern.compile("^(ac|pc|with_meals|after_food|before_food)\\b");
+    // candidate keyword indexes per leading ASCII character, in priority order
+    private static final int[][] CANDIDATES = new int[128][];
+    static {
+        for (char c = 0; c < 128; c++) {
+            int n = 0;
+            int[] tmp = new int[KEYWORDS.length];
+            for (int k = 0; k < KEYWORDS.length; k++) {
+                if (KEYWORDS[k].charAt(0) == c) tmp[n++] = k;
+            }
+            CANDIDATES[c] = java.util.Arrays.copyOf(tmp, n);
+        }
+    }
 
-    private static final Pattern UNIT = Pattern.compile("^(mg|g|ml|mcg|IU|%|drops)\\b");
-    private static final Pattern DURUNIT = Pattern.compile("^(d|w|m)\\b");
+    public MedLexer(Reader reader) throws IOException {
+        this(readAll(reader));
+    }
 
-    private static final Pattern NUMBER = Pattern.compile("^(([0-9]+(\\.[0-9]+)?)|([0-9]+/[0-9]+))");
-    private static final Pattern ID = Pattern.compile("^([A-Za-z][A-Za-z0-9_-]*)\\b");
+    public MedLexer(CharSequence input) {
+        this.input = input;
+        this.length = input.length();
+    }
 
-    public MedLexer(Reader reader) throws IOException {
+    static String readAll(Reader reader) throws IOException {
         StringBuilder sb = new StringBuilder();
         char[] buf = new char[4096];
         int n;
         while ((n = reader.read(buf)) != -1) sb.append(buf, 0, n);
-        this.input = sb.toString();
+        return sb.toString();
     }
 
-    private Token token(TokenType type, String lexeme) {
-        return new Token(type, lexeme, line, col);
+    @Override
+    public Token nextToken() {
+        skipTrivia();
+        if (index >= length) return new Token(TokenType.EOF, "<EOF>", line, col);
+        int start = index;
+        TokenType type = scan(start);
+        Token t = new Token(type, input.subSequence(start, tokenEnd).toString(), line, col);
+        // tokens never contain '\n', so only the column moves
+        col += tokenEnd - start;
+        index = tokenEnd;
+        return t;
     }
 
-    private void advance(String lexeme) {
-        for (int i = 0; i < lexeme.length(); i++) {
-            char c = lexeme.charAt(i);
-            if (c == '\n') { line++; col = 1; }
-            else { col++; }
+    // Lexes the rest of the input straight into buf without creating Token objects.
+    void tokenize(TokenBuffer buf) {
+        while (true) {
+            skipTrivia();
+            if (index >= length) {
+                buf.add(TokenType.EOF, index, index, line, col);
+                return;
+            }
+            int start = index;
+            TokenType type = scan(start);
+            buf.add(type, start, tokenEnd, line, col);
+            col += tokenEnd - start;
+            index = tokenEnd;
         }
-        index += lexeme.length();
     }
 
-    private String remaining() {
-        return input.substring(index);
+    // Lexes the tokens that start in [from, stop) into buf; 'from' begins line 'line'.
+    // Lines lex independently (no token, comment or boundary check looks past a '\n'),
+    // which is what lets TokenBuffer.edit() re-lex just the lines an edit touched.
+    // EOF is only added when stop is past the end of the input.
+    void tokenize(TokenBuffer buf, int from, int line, int stop) {
+        index = from;
+        this.line = line;
+        col = 1;
+        while (true) {
+            skipTrivia();
+            if (index >= stop) return;
+            if (index >= length) {
+                buf.add(TokenType.EOF, index, index, this.line, col);
+                return;
+            }
+            int start = index;
+            TokenType type = scan(start);
+            buf.add(type, start, tokenEnd, this.line, col);
+            col += tokenEnd - start;
+            index = tokenEnd;
+        }
     }
 
-    private Token tryMatch(Pattern p, TokenType type) {
-        Matcher m = p.matcher(remaining());
-        if (m.find()) {
-            String lex = m.group();
-            Token t = token(type, lex);
-            advance(lex);
-            return t;
+    private void skipTrivia() {
+        while (index < length) {
+            char c = input.charAt(index);
+            if (c == ' ' || c == '\t' || c == '\f' || c == '\r') {
+                index++; col++;
+            } else if (c == '\n') {
+                index++; line++; col = 1;
+            } else if (c == '#') {
+                // comment runs to the end of the line and swallows one line terminator
+                index++; col++;
+                while (index < length && !isLineTerminator(input.charAt(index))) { index++; col++; }
+                if (index < length) {
+                    char t = input.charAt(index);
+                    if (t == '\r' && index + 1 < length && input.charAt(index + 1) == '\n') {
+                        index += 2; line++; col = 1;
+                    } else if (t == '\n') {
+                        index++; line++; col = 1;
+                    } else {
+                        index++; col++;
+                    }
+                }
+            } else {
+                return;
+            }
         }
-        return null;
     }
 
-    public Token nextToken() {
-        while (index < input.length()) {
-            Token t;
-            // whitespace
-            t = tryMatch(WS, null);
-            if (t != null) continue;
-            // comments
-            Matcher cm = COMMENT.matcher(remaining());
-            if (cm.find()) { advance(cm.group()); continue; }
-
-            // sections
-            t = tryMatch(SECTION_RX, TokenType.SECTION_RX); if (t != null) return t;
-            t = tryMatch(SECTION_NOTES, TokenType.SECTION_NOTES); if (t != null) return t;
-            t = tryMatch(SECTION_PATIENT, TokenType.SECTION_PATIENT); if (t != null) return t;
-            t = tryMatch(SECTION_ALLERGY, TokenType.SECTION_ALLERGY); if (t != null) return t;
-
-            // punctuation
-            if (remaining().startsWith(":")) {
-                Token tok = token(TokenType.COLON, ":");
-                advance(":");
-                return tok;
+    private TokenType scan(int start) {
+        char c = input.charAt(start);
+
+        if (c < 128) {
+            for (int k : CANDIDATES[c]) {
+                String kw = KEYWORDS[k];
+                if (!startsWith(start, kw)) continue;
+                int end = start + kw.length();
+                TokenType type = KEYWORD_TYPES[k];
+                if (type == TokenType.SECTION_RX || type == TokenType.SECTION_NOTES || isBoundary(start, end)) {
+                    tokenEnd = end;
+                    return type;
+                }
+            }
+        }
+
+        if (c == ':') { tokenEnd = start + 1; return TokenType.COLON; }
+
+        // q<N>h interval frequency
+        if (c == 'q') {
+            int i = start + 1;
+            while (i < length && isDigit(input.charAt(i))) i++;
+            if (i > start + 1 && i < length && input.charAt(i) == 'h' && isBoundary(start, i + 1)) {
+                tokenEnd = i + 1;
+                return TokenType.FREQUENCY;
+            }
+        }
+
+        if (isDigit(c)) {
+            int i = start + 1;
+            while (i < length && isDigit(input.charAt(i))) i++;
+            if (i + 1 < length && input.charAt(i) == '.' && isDigit(input.charAt(i + 1))) {
+                i += 2;
+                while (i < length && isDigit(input.charAt(i))) i++;
             }
+            tokenEnd = i;
+            return TokenType.NUMBER;
+        }
 
-            // other tokens
-            t = tryMatch(FORM, TokenType.FORM); if (t != null) return t;
-            t = tryMatch(ROUTE, TokenType.ROUTE); if (t != null) return t;
-            t = tryMatch(FREQ, TokenType.FREQUENCY); if (t != null) return t;
-            t = tryMatch(FOOD, TokenType.FOOD_MOD); if (t != null) return t;
-            t = tryMatch(UNIT, TokenType.UNIT); if (t != null) return t;
-            t = tryMatch(DURUNIT, TokenType.DURATION_UNIT); if (t != null) return t;
-            t = tryMatch(NUMBER, TokenType.NUMBER); if (t != null) return t;
-            t = tryMatch(ID, TokenType.ID); if (t != null) return t;
-
-            String lex = remaining().substring(0, 1);
-            Token unk = token(TokenType.UNKNOWN, lex);
-            advance(lex);
-            return unk;
+        if (isAsciiLetter(c)) {
+            int end = matchId(start);
+            if (end > 0) { tokenEnd = end; return TokenType.ID; }
         }
-        return new Token(TokenType.EOF, "<EOF>", line, col);
+
+        tokenEnd = start + 1;
+        return TokenType.UNKNOWN;
+    }
+
+    // [A-Za-z][A-Za-z0-9_-]* followed by a word boundary, backing off like the regex would.
+    private int matchId(int start) {
+        if (start < idDeadEnd) return -1;
+        int j = start + 1;
+        while (j < length && isIdPart(input.charAt(j))) j++;
+        for (int e = j; e > start; e--) {
+            if (isBoundary(start, e)) return e;
+        }
+        // Only a dash-free run can fail, so every later start inside it fails too.
+        idDeadEnd = j;
+        return -1;
+    }
+
+    private boolean startsWith(int start, String kw) {
+        if (start + kw.length() > length) return false;
+        for (int i = 0; i < kw.length(); i++) {
+            if (input.charAt(start + i) != kw.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // java.util.regex '\b' at offset i, for a match that began at 'from'
+    private boolean isBoundary(int from, int i) {
+        boolean left = false;
+        if (i > from) {
+            int ch = Character.codePointBefore(input, i);
+            left = isWord(ch) || (Character.getType(ch) == Character.NON_SPACING_MARK
+                    && hasBaseCharacter(from, i - 1));
+        }
+        boolean right = false;
+        if (i < length) {
+            int ch = Character.codePointAt(input, i);
+            right = isWord(ch) || (Character.getType(ch) == Character.NON_SPACING_MARK
+                    && hasBaseCharacter(from, i));
+        }
+        return left ^ right;
+    }
+
+    private boolean hasBaseCharacter(int from, int i) {
+        for (int x = i; x >= from; x--) {
+            int ch = Character.codePointAt(input, x);
+            if (Character.isLetterOrDigit(ch)) return true;
+            if (Character.getType(ch) == Character.NON_SPACING_MARK) continue;
+            return false;
+        }
+        return false;
+    }
+
+    private static boolean isWord(int ch) {
+        return ch == '_' || Character.isLetterOrDigit(ch);
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    private static boolean isIdPart(char c) {
+        return isAsciiLetter(c) || isDigit(c) || c == '_' || c == '-';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,334 @@
+package medscript.compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import medscript.compiler.AST.*;
+import medscript.compiler.Parser.*;
+
+// The whole pipeline (lex, parse, semantic analysis, JSON) behind one
+// immutable object that can be shared by any number of threads. Each thread
+// keeps its own token buffer and JSON buffer, so steady-state compiles only
+// allocate the AST, the diagnostics and the result.
+public final class MedScriptCompiler {
+
+    // Lexing and parsing always run; SEMANTIC and EMIT can be left out.
+    public enum Phase { PARSE, SEMANTIC, EMIT }
+
+    // scratch buffers larger than this are dropped after use instead of kept per thread
+    private static final int MAX_SCRATCH_TOKENS = 1 << 16;
+    private static final int MAX_SCRATCH_JSON = 1 << 20;
+
+    public static final class Result {
+        // null for a cache hit read back from disk (the spill file only keeps
+        // diagnostics and JSON); check 'cached' before using it
+        public final Program program;
+        // syntax diagnostics followed by semantic ones
+        public final List<Diagnostic> diagnostics;
+        // UTF-8 JSON, null unless EMIT ran
+        public final byte[] json;
+        // only kept with keepTokens(true), which also bypasses the cache
+        public final TokenBuffer tokens;
+        // 0 for cache hits
+        public final int tokenCount;
+        public final boolean cached;
+        public final long lexNanos, parseNanos, semanticNanos, emitNanos;
+        // parser output kept for the cache
+        ParseResult parse;
+
+        Result(Program program, List<Diagnostic> diagnostics, byte[] json, TokenBuffer tokens, int tokenCount,
+               boolean cached, long lexNanos, long parseNanos, long semanticNanos, long emitNanos) {
+            this.program = program;
+            this.diagnostics = diagnostics;
+            this.json = json;
+            this.tokens = tokens;
+            this.tokenCount = tokenCount;
+            this.cached = cached;
+            this.lexNanos = lexNanos;
+            this.parseNanos = parseNanos;
+            this.semanticNanos = semanticNanos;
+            this.emitNanos = emitNanos;
+        }
+
+        public String json() {
+            return json == null ? null : new String(json, StandardCharsets.UTF_8);
+        }
+
+        public boolean hasErrors() {
+            for (Diagnostic d : diagnostics) if (d.level == Diagnostic.Level.ERROR) return true;
+            return false;
+        }
+    }
+
+    private static final class Scratch {
+        TokenBuffer tokens = new TokenBuffer();
+        ByteArrayOutputStream json = new ByteArrayOutputStream(4096);
+    }
+
+    private final LexerKind lexer;
+    private final SemanticAnalyzer analyzer;
+    private final boolean semantic;
+    private final boolean emit;
+    private final boolean compact;
+    private final boolean keepTokens;
+    private final boolean resync;
+    private final int maxDiagnostics;
+    private final int maxErrors;
+    private final CompileCache cache;
+    private final CompileMetrics metrics;
+    private final Executor executor;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private MedScriptCompiler(Builder b) throws IOException {
+        this.lexer = b.lexer;
+        this.analyzer = b.analyzer != null ? b.analyzer : SemanticAnalyzer.shared();
+        this.semantic = b.phases.contains(Phase.SEMANTIC);
+        this.emit = b.phases.contains(Phase.EMIT);
+        this.compact = b.compact;
+        this.keepTokens = b.keepTokens;
+        this.resync = b.resync;
+        this.maxDiagnostics = b.maxDiagnostics;
+        this.maxErrors = b.failFast ? 1 : Integer.MAX_VALUE;
+        this.metrics = b.metrics;
+        this.executor = b.executor != null ? b.executor : ForkJoinPool.commonPool();
+        this.cache = b.cacheEntries > 0 || b.cacheDir != null
+                ? new CompileCache(b.cacheEntries > 0 ? b.cacheEntries : 10_000, b.cacheBytes, b.cacheDir,
+                        b.cacheDiskBytes, version())
+                : null;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    // Everything that changes the output for the same source.
+    public String version() {
+        return analyzer.version() + "|" + analyzer.formulary().version() + "|" + lexer
+                + "|" + (semantic ? "semantic" : "-") + (emit ? compact ? "|compact" : "|pretty" : "|-")
+                + (resync ? "|resync" : "") + (maxErrors == 1 ? "|fail-fast" : "")
+                + (maxDiagnostics != Integer.MAX_VALUE ? "|max=" + maxDiagnostics : "");
+    }
+
+    public SemanticAnalyzer analyzer() {
+        return analyzer;
+    }
+
+    // null when the compiler was built without a cache
+    public CompileCache cache() {
+        return cache;
+    }
+
+    // null when the compiler was built without metrics
+    public CompileMetrics metrics() {
+        return metrics;
+    }
+
+    public Result compile(CharSequence source) {
+        return compile(source, null);
+    }
+
+    // 'origin' (e.g. file and record) only labels the slow-compile JFR event.
+    public Result compile(CharSequence source, String origin) {
+        CompileEvents.SlowCompile event = new CompileEvents.SlowCompile();
+        event.begin();
+        long t0 = metrics != null ? System.nanoTime() : 0;
+        Result r = cached(source);
+        if (metrics != null) metrics.record(source.length(), r, System.nanoTime() - t0);
+        if (event.shouldCommit()) {
+            event.origin = origin;
+            event.chars = source.length();
+            event.tokens = r.tokenCount;
+            event.medications = r.program != null ? r.program.medications.size() : -1;
+            event.diagnostics = r.diagnostics.size();
+            event.cached = r.cached;
+            event.commit();
+        }
+        return r;
+    }
+
+    private Result cached(CharSequence source) {
+        // cache entries do not keep tokens
+        if (cache == null || keepTokens) return run(source);
+        CompileCache.Key key = cache.key(source);
+        CompileCache.Entry hit = cache.get(key);
+        if (hit != null) {
+            Program program = hit.parse != null ? hit.parse.program : null;
+            return new Result(program, hit.diagnostics, hit.json, null, 0, true, 0, 0, 0, 0);
+        }
+        Result r = run(source);
+        cache.put(key, new CompileCache.Entry(r.parse, r.diagnostics, r.json));
+        return r;
+    }
+
+    // Compiles the sources in parallel; results are in source order.
+    public List<Result> compileAll(List<? extends CharSequence> sources) {
+        if (sources.size() < 2) return sources.stream().map(this::compile).collect(Collectors.toList());
+        List<CompletableFuture<Result>> futures = new ArrayList<>(sources.size());
+        for (CharSequence s : sources) futures.add(compileAsync(s));
+        List<Result> results = new ArrayList<>(sources.size());
+        for (CompletableFuture<Result> f : futures) results.add(f.join());
+        return results;
+    }
+
+    // A new IncrementalCompiler with this compiler's analyzer, phases, JSON layout and
+    // metrics, for one document that is compiled again after every edit.
+    public IncrementalCompiler incremental() {
+        if (lexer != LexerKind.HAND) throw new IllegalStateException("Incremental compiles need the hand-written lexer, not " + lexer);
+        return new IncrementalCompiler(analyzer, semantic, emit, compact, resync, maxDiagnostics, maxErrors, metrics);
+    }
+
+    public CompletableFuture<Result> compileAsync(CharSequence source) {
+        return CompletableFuture.supplyAsync(() -> compile(source), executor);
+    }
+
+    private Result run(CharSequence source) {
+        Scratch s = scratch.get();
+        long t0 = System.nanoTime();
+        TokenBuffer tokens;
+        if (lexer != LexerKind.HAND) {
+            try { tokens = lexer.tokenize(source); }
+            catch (IOException e) { throw new UncheckedIOException(e); }
+        } else if (keepTokens) {
+            tokens = TokenBuffer.lex(source);
+        } else {
+            tokens = s.tokens;
+            tokens.relex(source);
+        }
+        long t1 = System.nanoTime();
+
+        Parser parser = new Parser(tokens).resync(resync).limit(maxDiagnostics, maxErrors);
+        ParseResult pr = parser.parse();
+        long t2 = System.nanoTime();
+
+        // a parse stopped at a limit leaves nothing worth checking
+        List<Diagnostic> all = pr.diagnostics;
+        if (semantic && !parser.stopped()) {
+            all = new ArrayList<>(pr.diagnostics);
+            all.addAll(analyzer.analyze(pr.program));
+            Parser.truncate(all, maxDiagnostics, maxErrors);
+        }
+        long t3 = System.nanoTime();
+
+        byte[] json = null;
+        if (emit) {
+            s.json.reset();
+            try { JsonEmitter.write(pr.program, s.json, compact, analyzer.formulary()); }
+            catch (IOException e) { throw new UncheckedIOException(e); }   // in-memory stream
+            json = s.json.toByteArray();
+            if (json.length > MAX_SCRATCH_JSON) s.json = new ByteArrayOutputStream(4096);
+        }
+        long t4 = System.nanoTime();
+
+        if (tokens == s.tokens && tokens.size() > MAX_SCRATCH_TOKENS) s.tokens = new TokenBuffer();
+        Result r = new Result(pr.program, all, json, keepTokens ? tokens : null, tokens.size(), false,
+                t1 - t0, t2 - t1, t3 - t2, t4 - t3);
+        r.parse = pr;
+        return r;
+    }
+
+    public static final class Builder {
+        private LexerKind lexer = LexerKind.HAND;
+        private SemanticAnalyzer analyzer;
+        private EnumSet<Phase> phases = EnumSet.allOf(Phase.class);
+        private boolean compact = false;
+        private boolean keepTokens = false;
+        private boolean resync = false;
+        private boolean failFast = false;
+        private int maxDiagnostics = Integer.MAX_VALUE;
+        private int cacheEntries = 0;
+        private long cacheBytes = 256L << 20;
+        private Path cacheDir;
+        private long cacheDiskBytes = CompileCache.DEFAULT_DISK_BYTES;
+        private Executor executor;
+        private CompileMetrics metrics;
+
+        private Builder() {
+        }
+
+        public Builder lexer(LexerKind lexer) {
+            this.lexer = lexer;
+            return this;
+        }
+
+        public Builder analyzer(SemanticAnalyzer analyzer) {
+            this.analyzer = analyzer;
+            return this;
+        }
+
+        public Builder phases(Phase... phases) {
+            this.phases = EnumSet.of(Phase.PARSE, phases);
+            return this;
+        }
+
+        // compact (single-line) JSON instead of the pretty layout
+        public Builder compact(boolean compact) {
+            this.compact = compact;
+            return this;
+        }
+
+        // keep each result's TokenBuffer (for token views) instead of reusing a per-thread one
+        public Builder keepTokens(boolean keepTokens) {
+            this.keepTokens = keepTokens;
+            return this;
+        }
+
+        // Checking only: no JSON, and the parser resynchronizes after a syntax error.
+        public Builder validate() {
+            phases(Phase.SEMANTIC);
+            return resync(true);
+        }
+
+        // panic-mode recovery in the parser, see Parser.resync()
+        public Builder resync(boolean resync) {
+            this.resync = resync;
+            return this;
+        }
+
+        // Stops at the first error: parsing ends there and semantic analysis is skipped.
+        public Builder failFast(boolean failFast) {
+            this.failFast = failFast;
+            return this;
+        }
+
+        // Stops after this many diagnostics; a parse that reaches it skips semantic analysis.
+        public Builder maxDiagnostics(int maxDiagnostics) {
+            if (maxDiagnostics < 1) throw new IllegalArgumentException("maxDiagnostics must be at least 1");
+            this.maxDiagnostics = maxDiagnostics;
+            return this;
+        }
+
+        // see CompileCache; dir may be null for a memory-only cache. Disk hits
+        // come back without a Program, and keepTokens(true) compilers skip the cache.
+        public Builder cache(int maxEntries, long maxBytes, Path dir) {
+            this.cacheEntries = maxEntries;
+            this.cacheBytes = maxBytes;
+            this.cacheDir = dir;
+            return this;
+        }
+
+        // size limit of the cache directory, 1 GB by default
+        public Builder cacheDiskBytes(long maxDiskBytes) {
+            this.cacheDiskBytes = maxDiskBytes;
+            return this;
+        }
+
+        // runs compileAsync() and compileAll(); the common pool by default
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        // records every compile into 'metrics'; nothing is counted without one
+        public Builder metrics(CompileMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public MedScriptCompiler build() throws IOException {
+            return new MedScriptCompiler(this);
+        }
+    }
+}
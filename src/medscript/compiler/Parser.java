@@ -2,35 +2,117 @@ package medscript.compiler;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.Function;
 import medscript.compiler.AST.*;
 
 public class Parser {
-    private final MedLexer lexer;
-    private Token current;
+    private static final Form[] FORMS = Form.values();
+    private static final Route[] ROUTES = Route.values();
+    private static final Frequency[] FREQUENCIES = Frequency.named();
+    private static final FoodModifier[] FOOD_MODIFIERS = FoodModifier.values();
+    private static final Unit[] UNITS = Unit.values();
+    private static final DurationUnit[] DURATION_UNITS = DurationUnit.values();
+
+    private final TokenBuffer tokens;
+    private final int last;
+    private int pos = 0;
+    // inside an 'rx:' section, where the next step parses a medication
+    private boolean inRx = false;
+    private boolean fixedPosition = false;
+    // panic-mode recovery (see resync()); 'panic' is set from a syntax error to the end of its step
+    private boolean resync = false;
+    private boolean panic = false;
+    private int maxDiagnostics = Integer.MAX_VALUE;
+    private int maxErrors = Integer.MAX_VALUE;
+    // diagnostics counted by limitReached() so far, and the errors among them
+    private int counted = 0;
+    private int errors = 0;
+    private boolean stopped = false;
 
     public Parser(Reader r) throws IOException {
-        this.lexer = new MedLexer(r);
-        this.current = lexer.nextToken();
+        this(TokenBuffer.lex(MedLexer.readAll(r)));
+    }
+
+    public Parser(Lexer lexer) {
+        this(TokenBuffer.of(lexer));
+    }
+
+    public Parser(TokenBuffer tokens) {
+        this.tokens = tokens;
+        this.last = tokens.size() - 1;
+    }
+
+    // Panic-mode recovery: after a syntax error the parser reports nothing more
+    // until it reaches the next FORM (inside rx:) or section token, instead of
+    // one diagnostic per token that follows.
+    public Parser resync(boolean resync) {
+        this.resync = resync;
+        return this;
+    }
+
+    // Stops parsing at the step that reports the maxDiagnostics-th diagnostic or
+    // the maxErrors-th error (1 = fail fast); diagnostics past the limit are dropped.
+    public Parser limit(int maxDiagnostics, int maxErrors) {
+        this.maxDiagnostics = maxDiagnostics;
+        this.maxErrors = maxErrors;
+        return this;
+    }
+
+    // The last parse() ended at a limit, so the program is incomplete.
+    public boolean stopped() {
+        return stopped;
+    }
+
+    private TokenType type() {
+        return tokens.type(pos);
     }
 
     private void advance() {
-        current = lexer.nextToken();
+        if (pos < last) pos++;
     }
 
     private boolean match(TokenType type) {
-        if (current.type == type) { advance(); return true; }
+        if (type() == type) { advance(); return true; }
         return false;
     }
 
-    private Token expect(TokenType type, List<Diagnostic> diags, String msg) {
-        if (current.type == type) {
-            Token t = current;
+    // Returns the index of the consumed token, or ~index of the token that
+    // followed a missing one (so text() is "" and the position still reports).
+    private int expect(TokenType type, List<Diagnostic> diags, String msg) {
+        if (type() == type) {
+            int t = pos;
             advance();
             return t;
         }
-        diags.add(Diagnostic.error(current.line, current.column, msg + " (found: " + current.type + " '" + current.lexeme + "')"));
-        if (current.type != TokenType.EOF) advance();
-        return new Token(type, "", current.line, current.column);
+        if (panic) return ~pos;
+        diags.add(Diagnostic.error(tokens.line(pos), tokens.column(pos), msg + " (found: " + type() + " '" + tokens.lexeme(pos) + "')"));
+        // while resyncing the token stays: it may start the next medication or section
+        if (resync) panic = true;
+        else if (type() != TokenType.EOF) advance();
+        return ~pos;
+    }
+
+    // Errors and warnings inside a step; a panicking step reports nothing more.
+    private void error(List<Diagnostic> diags, int line, int column, String msg) {
+        if (panic) return;
+        diags.add(Diagnostic.error(line, column, msg));
+        if (resync) panic = true;
+    }
+
+    private void warn(List<Diagnostic> diags, int line, int column, String msg) {
+        if (!panic) diags.add(Diagnostic.warn(line, column, msg));
+    }
+
+    private String text(int t) {
+        return t < 0 ? "" : tokens.lexeme(t);
+    }
+
+    private int lineOf(int t) {
+        return tokens.line(t < 0 ? ~t : t);
+    }
+
+    private int columnOf(int t) {
+        return tokens.column(t < 0 ? ~t : t);
     }
 
     public static class Diagnostic {
@@ -39,16 +121,29 @@ public class Parser {
         public final int line;
         public final int column;
         public final String message;
+        // id of the semantic rule that reported it; null for syntax diagnostics
+        public final String rule;
 
-        private Diagnostic(Level level, int line, int column, String message) {
+        private Diagnostic(Level level, int line, int column, String message, String rule) {
             this.level = level;
             this.line = line;
             this.column = column;
             this.message = message;
+            this.rule = rule;
+        }
+
+        public static Diagnostic error(int line, int col, String msg) { return new Diagnostic(Level.ERROR, line, col, msg, null); }
+        public static Diagnostic warn(int line, int col, String msg) { return new Diagnostic(Level.WARNING, line, col, msg, null); }
+
+        // the same diagnostic 'lines' further down, for text moved by an edit
+        Diagnostic moved(int lines) {
+            return lines == 0 ? this : new Diagnostic(level, line + lines, column, message, rule);
         }
 
-        public static Diagnostic error(int line, int col, String msg) { return new Diagnostic(Level.ERROR, line, col, msg); }
-        public static Diagnostic warn(int line, int col, String msg) { return new Diagnostic(Level.WARNING, line, col, msg); }
+        // the same diagnostic, attributed to a semantic rule
+        Diagnostic withRule(String id) {
+            return id.equals(rule) ? this : new Diagnostic(level, line, column, message, id);
+        }
 
         @Override public String toString() {
             return level + " @ " + line + ":" + column + " - " + message;
@@ -62,53 +157,131 @@ public class Parser {
     }
 
     public ParseResult parse() {
+        CompileEvents.Parse event = new CompileEvents.Parse();
+        event.begin();
         Program p = new Program();
         List<Diagnostic> diags = new ArrayList<>();
 
-        while (current.type != TokenType.EOF) {
-            if (current.type == TokenType.SECTION_PATIENT) {
-                parsePatient(p, diags);
-            } else if (current.type == TokenType.SECTION_ALLERGY) {
-                parseAllergy(p, diags);
-            } else if (current.type == TokenType.SECTION_RX) {
-                parseRx(p, diags);
-            } else if (current.type == TokenType.SECTION_NOTES) {
-                parseNotes(p, diags);
-            } else {
-                diags.add(Diagnostic.error(current.line, current.column,
-                        "Unexpected token at top-level. Expected 'patient', 'allergy', 'rx:' or 'notes:'"));
-                advance();
+        stopped = false;
+        while (type() != TokenType.EOF && !stopped) {
+            step(p, diags);
+            stopped = limitReached(diags);
+        }
+        if (!stopped) {
+            finish(p, diags);
+            stopped = limitReached(diags);
+        }
+
+        if (event.shouldCommit()) {
+            event.tokens = tokens.size();
+            event.medications = p.medications.size();
+            event.diagnostics = diags.size();
+            event.commit();
+        }
+        return new ParseResult(p, diags);
+    }
+
+    // One top-level step: a patient, allergy or notes section, an 'rx:' header,
+    // one medication of the current rx section, or one stray token. A step only
+    // depends on inRx and the tokens from pos through the one it stops at, which
+    // is what lets IncrementalCompiler reuse the steps an edit did not touch.
+    void step(Program p, List<Diagnostic> diags) {
+        fixedPosition = false;
+        TokenType t = type();
+        if (t == TokenType.SECTION_PATIENT) {
+            inRx = false;
+            parsePatient(p, diags);
+        } else if (t == TokenType.SECTION_ALLERGY) {
+            inRx = false;
+            parseAllergy(p, diags);
+        } else if (t == TokenType.SECTION_RX) {
+            expect(TokenType.SECTION_RX, diags, "Expected 'rx:'");
+            inRx = true;
+        } else if (t == TokenType.SECTION_NOTES) {
+            inRx = false;
+            parseNotes(p, diags);
+        } else if (inRx && t == TokenType.FORM) {
+            Medication m = parseMedication(diags);
+            if (m != null) p.medications.add(m);
+        } else if (inRx) {
+            error(diags, tokens.line(pos), tokens.column(pos), "Expected medication starting with a FORM (Tab/Cap/Syr/...)");
+            advance();
+        } else {
+            error(diags, tokens.line(pos), tokens.column(pos),
+                    "Unexpected token at top-level. Expected 'patient', 'allergy', 'rx:' or 'notes:'");
+            advance();
+        }
+        if (panic) {
+            panic = false;
+            while (type() != TokenType.EOF && !isSection(type()) && !(inRx && type() == TokenType.FORM)) advance();
+        }
+    }
+
+    private static boolean isSection(TokenType t) {
+        return t == TokenType.SECTION_PATIENT || t == TokenType.SECTION_ALLERGY
+                || t == TokenType.SECTION_RX || t == TokenType.SECTION_NOTES;
+    }
+
+    // Counts the diagnostics added since the last call; at a limit, drops the ones past it.
+    boolean limitReached(List<Diagnostic> diags) {
+        if (maxDiagnostics == Integer.MAX_VALUE && maxErrors == Integer.MAX_VALUE) return false;
+        for (; counted < diags.size(); counted++) {
+            if (counted == maxDiagnostics || errors == maxErrors) {
+                diags.subList(counted, diags.size()).clear();
+                break;
             }
+            if (diags.get(counted).level == Diagnostic.Level.ERROR) errors++;
+        }
+        return counted == maxDiagnostics || errors == maxErrors;
+    }
+
+    // Drops the diagnostics after the maxDiagnostics-th one or the maxErrors-th error.
+    static void truncate(List<Diagnostic> diags, int maxDiagnostics, int maxErrors) {
+        int n = 0, errors = 0;
+        while (n < diags.size() && n < maxDiagnostics && errors < maxErrors) {
+            if (diags.get(n++).level == Diagnostic.Level.ERROR) errors++;
         }
+        if (n < diags.size()) diags.subList(n, diags.size()).clear();
+    }
 
+    // Checks that need the whole program, after the last step.
+    static void finish(Program p, List<Diagnostic> diags) {
         if (p.medications.isEmpty()) {
             diags.add(Diagnostic.error(1, 1, "No medications found. Add an 'rx:' section with at least one medication."));
         }
+    }
 
-        return new ParseResult(p, diags);
+    int position() { return pos; }
+    boolean inRx() { return inRx; }
+    // the last step reported a diagnostic at 1:1 rather than at one of its tokens
+    boolean fixedPosition() { return fixedPosition; }
+
+    void seek(int pos, boolean inRx) {
+        this.pos = pos;
+        this.inRx = inRx;
     }
 
     private void parsePatient(Program p, List<Diagnostic> diags) {
         expect(TokenType.SECTION_PATIENT, diags, "Expected 'patient'");
-        Token nameTok = expect(TokenType.ID, diags, "Expected patient name after 'patient'");
-        if (!nameTok.lexeme.isEmpty()) p.patient.name = nameTok.lexeme;
+        int nameTok = expect(TokenType.ID, diags, "Expected patient name after 'patient'");
+        if (nameTok >= 0) p.patient.name = tokens.lexeme(nameTok);
 
-        while (current.type == TokenType.ID) {
-            String key = current.lexeme.toLowerCase();
+        while (type() == TokenType.ID) {
+            String key = tokens.lexeme(pos).toLowerCase();
             if ("age".equals(key)) {
                 advance();
-                Token ageTok = expect(TokenType.NUMBER, diags, "Expected age number");
-                try { p.patient.age = (int)Math.round(Double.parseDouble(ageTok.lexeme.replace("/", "."))); }
-                catch(Exception e){ diags.add(Diagnostic.error(ageTok.line, ageTok.column, "Invalid age value")); }
+                int ageTok = expect(TokenType.NUMBER, diags, "Expected age number");
+                try { p.patient.age = (int)Math.round(Double.parseDouble(text(ageTok).replace("/", "."))); }
+                catch(Exception e){ error(diags, lineOf(ageTok), columnOf(ageTok), "Invalid age value"); }
             } else if ("weight".equals(key)) {
                 advance();
-                Token wTok = expect(TokenType.NUMBER, diags, "Expected weight number");
-                String val = wTok.lexeme;
+                int wTok = expect(TokenType.NUMBER, diags, "Expected weight number");
+                String val = text(wTok);
                 if (match(TokenType.ID)) 
                 try { p.patient.weightKg = Double.parseDouble(val.replace("/", ".")); }
-                catch(Exception e){ diags.add(Diagnostic.error(wTok.line, wTok.column, "Invalid weight value")); }
+                catch(Exception e){ error(diags, lineOf(wTok), columnOf(wTok), "Invalid weight value"); }
             } else {
-                diags.add(Diagnostic.warn(current.line, current.column, "Unknown patient attribute '" + current.lexeme + "' ignored"));
+                warn(diags, tokens.line(pos), tokens.column(pos), "Unknown patient attribute '" + tokens.lexeme(pos) + "' ignored");
                 advance();
             }
         }
@@ -117,54 +290,38 @@ public class Parser {
     private void parseAllergy(Program p, List<Diagnostic> diags) {
         expect(TokenType.SECTION_ALLERGY, diags, "Expected 'allergy'");
         int count = 0;
-        while (current.type == TokenType.ID) {
-            p.allergies.add(current.lexeme.toLowerCase());
+        while (type() == TokenType.ID) {
+            p.allergies.add(tokens.lexeme(pos).toLowerCase());
             count++;
             advance();
         }
         if (count == 0) {
-            diags.add(Diagnostic.error(current.line, current.column, "Expected at least one allergy name after 'allergy'"));
-        }
-    }
-
-    private void parseRx(Program p, List<Diagnostic> diags) {
-        expect(TokenType.SECTION_RX, diags, "Expected 'rx:'");
-        while (current.type != TokenType.EOF &&
-               current.type != TokenType.SECTION_PATIENT &&
-               current.type != TokenType.SECTION_ALLERGY &&
-               current.type != TokenType.SECTION_NOTES &&
-               current.type != TokenType.SECTION_RX) {
-            if (current.type == TokenType.FORM) {
-                Medication m = parseMedication(diags);
-                if (m != null) p.medications.add(m);
-            } else {
-                diags.add(Diagnostic.error(current.line, current.column, "Expected medication starting with a FORM (Tab/Cap/Syr/...)"));
-                advance();
-            }
+            error(diags, tokens.line(pos), tokens.column(pos), "Expected at least one allergy name after 'allergy'");
         }
     }
 
     private Medication parseMedication(List<Diagnostic> diags) {
         Medication m = new Medication();
-        Token formTok = expect(TokenType.FORM, diags, "Expected FORM");
-        m.form = formTok.lexeme;
+        int formTok = expect(TokenType.FORM, diags, "Expected FORM");
+        m.form = symbol(formTok, FORMS, f -> f.symbol);
 
-        Token nameTok = expect(TokenType.ID, diags, "Expected medicine name (e.g., PCM, Amox)");
-        m.name = nameTok.lexeme;
+        int nameTok = expect(TokenType.ID, diags, "Expected medicine name (e.g., PCM, Amox)");
+        m.name = text(nameTok);
 
         m.dose = parseDose(diags);
 
-        if (current.type == TokenType.ROUTE) { m.route = current.lexeme.toLowerCase(); advance(); }
+        if (type() == TokenType.ROUTE) { m.route = symbol(pos, ROUTES, r -> r.symbol); advance(); }
 
-        Token freqTok = expect(TokenType.FREQUENCY, diags, "Expected frequency (od/bd/tds/qid/...)");
-        m.freq = freqTok.lexeme.toLowerCase();
+        int freqTok = expect(TokenType.FREQUENCY, diags, "Expected frequency (od/bd/tds/qid/...)");
+        m.freq = frequency(freqTok, diags);
 
         m.duration = parseDuration(diags);
 
-        if (current.type == TokenType.FOOD_MOD) { m.foodMod = current.lexeme.toLowerCase(); advance(); }
+        if (type() == TokenType.FOOD_MOD) { m.foodMod = symbol(pos, FOOD_MODIFIERS, f -> f.symbol); advance(); }
 
-        while (current.type == TokenType.ID) {
-            String flag = current.lexeme.toLowerCase();
+        while (type() == TokenType.ID) {
+            String flag = tokens.lexeme(pos).toLowerCase();
+            if (m.extras.isEmpty()) m.extras = new LinkedHashMap<>();
             m.extras.put(flag, "true");
             advance();
         }
@@ -174,83 +331,122 @@ public class Parser {
 
     private Dose parseDose(List<Diagnostic> diags) {
         Dose d = new Dose();
+        Quantity strength = d.strength;
 
-        Token num1 = expect(TokenType.NUMBER, diags, "Expected dose number (e.g., 500 or 0.5 or 1/2)");
-        String strength = num1.lexeme;
+        int num1 = expect(TokenType.NUMBER, diags, "Expected dose number (e.g., 500 or 0.5 or 1/2)");
+        number(num1, strength);
 
-        if (current.type == TokenType.UNIT) {
-            strength += current.lexeme;
-            advance();
-            if (current.type == TokenType.ID && "/".equals(current.lexeme)) {
-            }
-            if (current.type == TokenType.UNKNOWN && "/".equals(current.lexeme)) {
-                strength += "/";
-                advance();
-                Token num2 = expect(TokenType.NUMBER, diags, "Expected number after '/' in strength (e.g., 5 in 5mg/5ml)");
-                strength += num2.lexeme;
-                Token unit2 = expect(TokenType.UNIT, diags, "Expected unit after second number in strength (e.g., ml)");
-                strength += unit2.lexeme;
-            }
-        } else if (current.type == TokenType.UNIT || current.type == TokenType.ID) {
-        } else if (current.type == TokenType.UNKNOWN && "%".equals(current.lexeme)) {
-            strength += "%";
+        // 1/2 lexes as NUMBER '/' NUMBER
+        if (num1 >= 0 && strength.divisor == 1 && isSlash() && tokens.type(pos + 1) == TokenType.NUMBER) {
             advance();
-        } else if (current.type == TokenType.UNIT) {
-            strength += current.lexeme;
+            strength.divisor = number(pos);
+            strength.text += "/" + tokens.lexeme(pos);
             advance();
-        } else if (current.type == TokenType.ID && "%".equals(current.lexeme)) {
-            strength += "%";
+        }
+        if (strength.divisor == 0) {
+            error(diags, lineOf(num1), columnOf(num1), "Fraction denominator must not be zero");
+        }
+
+        if (type() == TokenType.UNIT) {
+            strength.unit = symbol(pos, UNITS, u -> u.symbol);
             advance();
-        } else if (current.type == TokenType.UNKNOWN && "%".equals(current.lexeme)) {
-            strength += "%";
+            if (isSlash()) {
+                advance();
+                Quantity per = new Quantity();
+                int num2 = expect(TokenType.NUMBER, diags, "Expected number after '/' in strength (e.g., 5 in 5mg/5ml)");
+                number(num2, per);
+                int unit2 = expect(TokenType.UNIT, diags, "Expected unit after second number in strength (e.g., ml)");
+                per.unit = symbol(unit2, UNITS, u -> u.symbol);
+                strength.per = per;
+            }
+        } else if (type() == TokenType.ID) {
+        } else if (type() == TokenType.UNKNOWN && tokens.lexemeEquals(pos, "%")) {
+            strength.unit = Unit.PERCENT;
             advance();
         } else {
-            diags.add(Diagnostic.error(current.line, current.column, "Expected unit after dose number (mg/ml/g/...)"));
+            error(diags, tokens.line(pos), tokens.column(pos), "Expected unit after dose number (mg/ml/g/...)");
         }
 
-        d.strength = strength;
-
-        if (current.type == TokenType.NUMBER) {
-            Token amtNum = current;
+        if (type() == TokenType.NUMBER) {
+            int amtNum = pos;
             advance();
-            if (current.type == TokenType.UNIT) {
-                d.amount = amtNum.lexeme + current.lexeme;
+            if (type() == TokenType.UNIT) {
+                Quantity amount = new Quantity();
+                number(amtNum, amount);
+                amount.unit = symbol(pos, UNITS, u -> u.symbol);
+                d.amount = amount;
                 advance();
             } else {
-                diags.add(Diagnostic.warn(amtNum.line, amtNum.column, "Possible amount provided but missing unit (e.g., '10ml')"));
+                warn(diags, tokens.line(amtNum), tokens.column(amtNum), "Possible amount provided but missing unit (e.g., '10ml')");
             }
         }
 
         return d;
     }
 
+    private boolean isSlash() {
+        return type() == TokenType.UNKNOWN && tokens.lexemeEquals(pos, "/");
+    }
+
+    // NUMBER tokens are digits with an optional decimal part; NaN for a missing token
+    private double number(int t) {
+        return t < 0 ? Double.NaN : Double.parseDouble(tokens.lexeme(t));
+    }
+
+    // Both lexers read a fraction such as 1/2 as NUMBER '/' NUMBER (see parseDose()).
+    private void number(int t, Quantity q) {
+        if (t < 0) return;
+        q.text = tokens.lexeme(t);
+        q.number = Double.parseDouble(q.text);
+    }
+
+    // Keyword tokens are case-sensitive, so their lexemes are exactly the symbols.
+    private <E> E symbol(int t, E[] values, Function<E, String> symbolOf) {
+        if (t < 0) return null;
+        for (E v : values) {
+            if (tokens.lexemeEquals(t, symbolOf.apply(v))) return v;
+        }
+        return null;
+    }
+
+    private Frequency frequency(int t, List<Diagnostic> diags) {
+        if (t < 0) return null;
+        Frequency f = symbol(t, FREQUENCIES, v -> v.code);
+        if (f != null) return f;
+        f = Frequency.interval(tokens.lexeme(t));
+        // q0h would mean no doses a day and slip past the daily limit rule
+        if (f.intervalHours < 1) {
+            error(diags, lineOf(t), columnOf(t), "Frequency interval must be at least 1 hour");
+        }
+        return f;
+    }
+
     private Duration parseDuration(List<Diagnostic> diags) {
         Duration dur = new Duration();
-        Token vTok = expect(TokenType.NUMBER, diags, "Expected duration number (e.g., 5 in 5d)");
-        Token uTok = expect(TokenType.DURATION_UNIT, diags, "Expected duration unit (d/w/m)");
+        int vTok = expect(TokenType.NUMBER, diags, "Expected duration number (e.g., 5 in 5d)");
+        int uTok = expect(TokenType.DURATION_UNIT, diags, "Expected duration unit (d/w/m)");
 
-        try { dur.value = Double.parseDouble(vTok.lexeme.replace("/", ".")); }
-        catch(Exception e){ diags.add(Diagnostic.error(vTok.line, vTok.column, "Invalid duration value")); dur.value = 0; }
+        try { dur.value = Double.parseDouble(text(vTok).replace("/", ".")); }
+        catch(Exception e){ error(diags, lineOf(vTok), columnOf(vTok), "Invalid duration value"); dur.value = 0; }
 
-        dur.unit = uTok.lexeme;
+        dur.unit = symbol(uTok, DURATION_UNITS, u -> u.symbol);
         return dur;
     }
 
     private void parseNotes(Program p, List<Diagnostic> diags) {
         expect(TokenType.SECTION_NOTES, diags, "Expected 'notes:'");
         StringBuilder line = new StringBuilder();
-        while (current.type != TokenType.EOF &&
-                current.type != TokenType.SECTION_PATIENT &&
-                current.type != TokenType.SECTION_ALLERGY &&
-                current.type != TokenType.SECTION_RX &&
-                current.type != TokenType.SECTION_NOTES) {
-            if (current.type == TokenType.UNKNOWN && "\n".equals(current.lexeme)) {
-            }
-            line.append(current.lexeme).append(" ");
+        while (type() != TokenType.EOF &&
+                type() != TokenType.SECTION_PATIENT &&
+                type() != TokenType.SECTION_ALLERGY &&
+                type() != TokenType.SECTION_RX &&
+                type() != TokenType.SECTION_NOTES) {
+            tokens.appendLexeme(pos, line);
+            line.append(" ");
             advance();
         }
         String note = line.toString().trim();
         if (!note.isEmpty()) p.notes.add(note);
-        else diags.add(Diagnostic.warn(1,1,"Empty notes section"));
+        else { diags.add(Diagnostic.warn(1,1,"Empty notes section")); fixedPosition = true; }
     }
 }
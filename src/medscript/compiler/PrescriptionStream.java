@@ -0,0 +1,178 @@
+package medscript.compiler;
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.*;
+import medscript.compiler.AST.*;
+import medscript.compiler.Parser.*;
+
+// Reads a stream of prescriptions separated by '---' lines and compiles them
+// one record at a time, so memory use is bounded by the largest record rather
+// than by the size of the whole export.
+public class PrescriptionStream implements Iterable<PrescriptionStream.Result>, Closeable {
+
+    public static final String SEPARATOR = "---";
+    public static final int DEFAULT_MAX_RECORD_CHARS = 1 << 24;
+
+    public static class Record {
+        public final int index;       // 0-based position in the stream
+        public final int startLine;   // line of the record's first line in the stream
+        public final String source;
+        Record(int index, int startLine, String source) {
+            this.index = index;
+            this.startLine = startLine;
+            this.source = source;
+        }
+    }
+
+    // Diagnostic positions are relative to the record; add startLine - 1 for stream lines.
+    public static class Result {
+        public final int index;
+        public final int startLine;
+        public final Program program;
+        public final List<Diagnostic> diagnostics;
+        public Result(int index, int startLine, Program program, List<Diagnostic> diagnostics) {
+            this.index = index;
+            this.startLine = startLine;
+            this.program = program;
+            this.diagnostics = diagnostics;
+        }
+    }
+
+    private final Reader reader;
+    private final int maxRecordChars;
+    private final char[] buf = new char[8192];
+    private int bufPos = 0;
+    private int bufLen = 0;
+    private boolean eof = false;
+
+    private final StringBuilder record = new StringBuilder();
+    private final StringBuilder line = new StringBuilder();
+    private int lineNo = 0;
+    private int recordIndex = 0;
+
+    // reused between records when compiling sequentially
+    private final TokenBuffer tokens = new TokenBuffer();
+
+    public PrescriptionStream(Reader reader) {
+        this(reader, DEFAULT_MAX_RECORD_CHARS);
+    }
+
+    public PrescriptionStream(Reader reader, int maxRecordChars) {
+        this.reader = reader;
+        this.maxRecordChars = maxRecordChars;
+    }
+
+    // Returns the next non-blank record, or null at the end of the stream.
+    public Record nextRecord() throws IOException {
+        while (true) {
+            record.setLength(0);
+            int startLine = lineNo + 1;
+            boolean blank = true;
+            boolean any = false;
+            while (readLine()) {
+                any = true;
+                if (isSeparator(line)) break;
+                if (blank && !isBlank(line)) blank = false;
+                if (record.length() + line.length() + 1 > maxRecordChars) {
+                    throw new IOException("Record starting at line " + startLine + " exceeds " + maxRecordChars + " characters");
+                }
+                record.append(line).append('\n');
+            }
+            if (!any) return null;
+            if (!blank) return new Record(recordIndex++, startLine, record.toString());
+        }
+    }
+
+    public static Result compile(Record r) {
+        return compile(r, TokenBuffer.lex(r.source));
+    }
+
+    private static Result compile(Record r, TokenBuffer tokens) {
+        ParseResult pr = new Parser(tokens).parse();
+        List<Diagnostic> all = new ArrayList<>(pr.diagnostics);
+        all.addAll(new SemanticAnalyzer().analyze(pr.program));
+        return new Result(r.index, r.startLine, pr.program, all);
+    }
+
+    @Override
+    public Iterator<Result> iterator() {
+        return new Iterator<Result>() {
+            private Record next;
+
+            @Override public boolean hasNext() {
+                if (next == null) {
+                    try { next = nextRecord(); }
+                    catch (IOException e) { throw new UncheckedIOException(e); }
+                }
+                return next != null;
+            }
+
+            @Override public Result next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Record r = next;
+                next = null;
+                tokens.relex(r.source);
+                return compile(r, tokens);
+            }
+        };
+    }
+
+    public Stream<Result> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    // Reads one line (without its '\n') into 'line'; false at end of input.
+    private boolean readLine() throws IOException {
+        line.setLength(0);
+        if (eof && bufPos >= bufLen) return false;
+        while (true) {
+            if (bufPos >= bufLen) {
+                bufLen = reader.read(buf, 0, buf.length);
+                bufPos = 0;
+                if (bufLen <= 0) {
+                    eof = true;
+                    bufLen = 0;
+                    if (line.length() == 0) return false;
+                    lineNo++;
+                    return true;
+                }
+            }
+            int start = bufPos;
+            while (bufPos < bufLen && buf[bufPos] != '\n') bufPos++;
+            line.append(buf, start, bufPos - start);
+            if (line.length() > maxRecordChars) {
+                throw new IOException("Line " + (lineNo + 1) + " exceeds " + maxRecordChars + " characters");
+            }
+            if (bufPos < bufLen) {
+                bufPos++;
+                lineNo++;
+                return true;
+            }
+        }
+    }
+
+    private static boolean isSeparator(CharSequence s) {
+        int from = 0, to = s.length();
+        while (from < to && Character.isWhitespace(s.charAt(from))) from++;
+        while (to > from && Character.isWhitespace(s.charAt(to - 1))) to--;
+        if (to - from != SEPARATOR.length()) return false;
+        for (int i = 0; i < SEPARATOR.length(); i++) {
+            if (s.charAt(from + i) != SEPARATOR.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isBlank(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isWhitespace(s.charAt(i))) return false;
+        }
+        return true;
+    }
+}
@@ -1,100 +1,308 @@
 package medscript.compiler;
 
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.*;
 import medscript.compiler.AST.*;
 import medscript.compiler.Parser.Diagnostic;
 
+// Runs the enabled SemanticRules in one fused pass over the medications.
+// Immutable once built and safe to share between threads.
 public class SemanticAnalyzer {
 
-    private static final Map<String, String> GENERIC = new HashMap<>();
-    static {
-        GENERIC.put("pcm", "Paracetamol");
-        GENERIC.put("amox", "Amoxicillin");
-        GENERIC.put("cetirizine", "Cetirizine");
-        GENERIC.put("hydrocortisone", "Hydrocortisone");
+    // comma-separated rule ids to switch off, e.g. duplicate,dose-limit
+    public static final String DISABLED_PROPERTY = "medscript.rules.disabled";
+    // "true" to collect per-rule timings (see ruleStats())
+    public static final String TIMING_PROPERTY = "medscript.rules.timing";
+
+    static final int DEFAULT_PARALLEL_THRESHOLD = 4096;
+    private static final int CHUNK = 1024;
+
+    private final AllergyIndex allergies;
+    private final DoseLimitTable doseLimits;
+    private final SemanticRule[] rules;
+    // indexes of the rules that read medication fields; the others only run checkProgram()
+    private final int[] medicationRules;
+    // per entry of medicationRules: the rule is local (see SemanticRule.isLocal())
+    private final boolean[] localRules;
+    private final RuleStats[] stats;
+    private final boolean timing;
+    private final int parallelThreshold;
+
+    public SemanticAnalyzer() {
+        this(Holder.DEFAULT);
+    }
+
+    public SemanticAnalyzer(Formulary formulary) {
+        this(builder().allergies(AllergyIndex.builtIn(formulary))
+                .doseLimits(DoseLimitTable.builtIn(formulary)).systemProperties().build());
+    }
+
+    public SemanticAnalyzer(AllergyIndex allergies) {
+        this(builder().allergies(allergies).systemProperties().build());
+    }
+
+    private SemanticAnalyzer(SemanticAnalyzer other) {
+        this.allergies = other.allergies;
+        this.doseLimits = other.doseLimits;
+        this.rules = other.rules;
+        this.medicationRules = other.medicationRules;
+        this.localRules = other.localRules;
+        this.stats = other.stats;
+        this.timing = other.timing;
+        this.parallelThreshold = other.parallelThreshold;
+    }
+
+    private SemanticAnalyzer(Builder b, SemanticRule[] rules) {
+        this.allergies = b.allergies != null ? b.allergies : AllergyIndex.shared();
+        this.doseLimits = b.doseLimits != null ? b.doseLimits : DoseLimitTable.shared();
+        this.rules = rules;
+        this.medicationRules = IntStream.range(0, rules.length)
+                .filter(r -> rules[r].fields().stream().anyMatch(f -> !f.isProgramWide()))
+                .toArray();
+        this.localRules = new boolean[medicationRules.length];
+        for (int k = 0; k < medicationRules.length; k++) localRules[k] = rules[medicationRules[k]].isLocal();
+        this.stats = new RuleStats[rules.length];
+        for (int i = 0; i < rules.length; i++) stats[i] = new RuleStats(rules[i].id());
+        this.timing = b.timing;
+        this.parallelThreshold = b.parallelThreshold;
+    }
+
+    private static final class Holder {
+        // shared by every new SemanticAnalyzer(), so its rule timings add up across instances
+        static final SemanticAnalyzer DEFAULT = builder().systemProperties().build();
+    }
+
+    // The analyzer behind new SemanticAnalyzer(): shared indexes, service-loaded rules, system properties.
+    public static SemanticAnalyzer shared() {
+        return Holder.DEFAULT;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Formulary formulary() {
+        return allergies.formulary();
     }
 
-    // Example allergy conflicts 
-    private static final Map<String, Set<String>> ALLERGY_CONFLICTS = new HashMap<>();
-    static {
-        ALLERGY_CONFLICTS.put("penicillin", new HashSet<>(Arrays.asList("amox", "amoxicillin")));
+    public AllergyIndex allergies() {
+        return allergies;
+    }
+
+    public DoseLimitTable doseLimits() {
+        return doseLimits;
+    }
+
+    // Identifies everything that affects the diagnostics: tables and enabled rules.
+    public String version() {
+        StringBuilder sb = new StringBuilder(allergies.version()).append('/').append(doseLimits.version());
+        for (SemanticRule r : rules) sb.append('/').append(r.id()).append('=').append(r.getClass().getName());
+        return sb.toString();
+    }
+
+    public List<SemanticRule> rules() {
+        return List.of(rules);
+    }
+
+    public boolean isTiming() {
+        return timing;
+    }
+
+    // Per-rule counters in rule order; times stay zero unless timing is enabled.
+    public List<RuleStats> ruleStats() {
+        return List.of(stats);
     }
 
     public List<Diagnostic> analyze(Program p) {
+        CompileEvents.Semantic event = new CompileEvents.Semantic();
+        event.begin();
         List<Diagnostic> diags = new ArrayList<>();
 
-        // Required patient name 
-        if (p.patient.name == null || p.patient.name.isBlank()) {
-            diags.add(Diagnostic.warn(1, 1, "Patient name is missing (add: patient <Name> ...)"));
+        Object[] state = new Object[rules.length];
+        for (int r = 0; r < rules.length; r++) state[r] = rules[r].prepare(p, this);
+        for (int r = 0; r < rules.length; r++) {
+            int before = diags.size();
+            rules[r].checkProgram(p, state[r], diags);
+            tag(diags, before, r);
         }
 
-        // Duplicate medication names
-        Set<String> seen = new HashSet<>();
-        for (Medication m : p.medications) {
-            String key = m.name.toLowerCase();
-            if (!seen.add(key)) {
-                diags.add(Diagnostic.warn(1,1, "Duplicate medication detected: " + m.name));
-            }
+        int n = p.medications.size();
+        if (n < parallelThreshold) {
+            checkMedications(p.medications, 0, n, state, diags);
+        } else {
+            // chunks are analysed concurrently and joined in medication order
+            int chunks = (n + CHUNK - 1) / CHUNK;
+            List<List<Diagnostic>> parts = IntStream.range(0, chunks).parallel()
+                    .mapToObj(c -> {
+                        List<Diagnostic> part = new ArrayList<>();
+                        checkMedications(p.medications, c * CHUNK, Math.min(n, (c + 1) * CHUNK), state, part);
+                        return part;
+                    })
+                    .collect(Collectors.toList());
+            for (List<Diagnostic> part : parts) diags.addAll(part);
+        }
+        if (event.shouldCommit()) {
+            event.medications = n;
+            event.diagnostics = diags.size();
+            event.parallel = n >= parallelThreshold;
+            event.commit();
+        }
+        return diags;
+    }
 
-            // Dose must be positive
-            double doseVal = extractFirstNumber(m.dose != null ? m.dose.strength : "");
-            if (doseVal <= 0) {
-                diags.add(Diagnostic.error(1,1, "Dose must be positive for " + m.name));
-            }
+    private static final Diagnostic[] NO_DIAGNOSTICS = new Diagnostic[0];
 
-            // Duration must be >0
-            if (m.duration == null || m.duration.value <= 0) {
-                diags.add(Diagnostic.error(1,1, "Duration must be > 0 for " + m.name));
-            }
+    // analyze() for IncrementalCompiler: local[i] holds the local rules'
+    // diagnostics for medication i when an earlier run already checked that
+    // medication object; those rules are skipped for it. Null entries are
+    // checked and filled in. The other rules run as usual. Always sequential.
+    List<Diagnostic> analyze(Program p, Diagnostic[][][] local) {
+        List<Diagnostic> diags = new ArrayList<>();
+        Object[] state = new Object[rules.length];
+        for (int r = 0; r < rules.length; r++) state[r] = rules[r].prepare(p, this);
+        for (int r = 0; r < rules.length; r++) {
+            int before = diags.size();
+            rules[r].checkProgram(p, state[r], diags);
+            tag(diags, before, r);
+        }
 
-            // Route validation
-            if (m.route != null) {
-                if ((m.form.equalsIgnoreCase("Oint") || m.form.equalsIgnoreCase("Cream")) &&
-                        (m.route.equals("iv") || m.route.equals("im"))) {
-                    diags.add(Diagnostic.error(1,1, "Invalid route '" + m.route + "' for " + m.form + " " + m.name));
+        List<Medication> meds = p.medications;
+        for (int i = 0; i < meds.size(); i++) {
+            Medication m = meds.get(i);
+            Diagnostic[][] memo = local[i];
+            if (memo == null) local[i] = new Diagnostic[medicationRules.length][];
+            for (int k = 0; k < medicationRules.length; k++) {
+                int r = medicationRules[k];
+                if (memo != null && localRules[k]) {
+                    Collections.addAll(diags, memo[k]);
+                    continue;
                 }
-            }
-
-            // Basic dose limit warning 
-            if (m.name.equalsIgnoreCase("pcm") || m.name.equalsIgnoreCase("paracetamol")) {
-                if (m.dose != null && m.dose.strength != null && m.dose.strength.contains("mg")) {
-                    double mg = extractFirstNumber(m.dose.strength);
-                    if (mg > 1000) {
-                        diags.add(Diagnostic.warn(1,1, "High single dose for Paracetamol (" + mg + "mg). Check safety limits."));
-                    }
+                int before = diags.size();
+                rules[r].checkMedication(m, i, state[r], diags);
+                stats[r].medications.increment();
+                tag(diags, before, r);
+                if (memo == null && localRules[k]) {
+                    local[i][k] = diags.size() == before ? NO_DIAGNOSTICS
+                            : diags.subList(before, diags.size()).toArray(NO_DIAGNOSTICS);
                 }
             }
+        }
+        return diags;
+    }
 
-            // Allergy conflicts
-            for (String a : p.allergies) {
-                Set<String> conflicts = ALLERGY_CONFLICTS.get(a.toLowerCase());
-                if (conflicts != null) {
-                    String medKey = m.name.toLowerCase();
-                    if (conflicts.contains(medKey) || conflicts.contains(GENERIC.getOrDefault(medKey, medKey).toLowerCase())) {
-                        diags.add(Diagnostic.error(1,1, "Allergy conflict: patient allergy '" + a + "' conflicts with " + m.name));
-                    }
+    private void checkMedications(List<Medication> meds, int from, int to, Object[] state, List<Diagnostic> out) {
+        for (int i = from; i < to; i++) {
+            Medication m = meds.get(i);
+            for (int r : medicationRules) {
+                int before = out.size();
+                if (timing) {
+                    long t0 = System.nanoTime();
+                    rules[r].checkMedication(m, i, state[r], out);
+                    stats[r].nanos.add(System.nanoTime() - t0);
+                } else {
+                    rules[r].checkMedication(m, i, state[r], out);
                 }
+                tag(out, before, r);
             }
         }
+        for (int r : medicationRules) stats[r].medications.add(to - from);
+    }
 
-        return diags;
+    // Attributes the diagnostics rule r added after 'from' to it (see Diagnostic.rule).
+    private void tag(List<Diagnostic> diags, int from, int r) {
+        int n = diags.size();
+        if (n == from) return;
+        String id = rules[r].id();
+        for (int i = from; i < n; i++) diags.set(i, diags.get(i).withRule(id));
+        stats[r].diagnostics.add(n - from);
     }
 
-    private double extractFirstNumber(String s) {
-        Matcher m = Pattern.compile("([0-9]+(\\.[0-9]+)?)").matcher(s);
-        if (m.find()) {
-            try { return Double.parseDouble(m.group(1)); } catch(Exception e) { return 0; }
-        }
-        // handle 1/2
-        Matcher f = Pattern.compile("([0-9]+)\\/([0-9]+)").matcher(s);
-        if (f.find()) {
-            try { return Double.parseDouble(f.group(1)) / Double.parseDouble(f.group(2)); } catch(Exception e) { return 0; }
+    public static String genericName(String shortName) {
+        return Formulary.shared().genericOrSelf(shortName);
+    }
+
+    public static final class RuleStats {
+        public final String id;
+        public final LongAdder nanos = new LongAdder();
+        public final LongAdder medications = new LongAdder();
+        public final LongAdder diagnostics = new LongAdder();
+
+        RuleStats(String id) {
+            this.id = id;
         }
-        return 0;
     }
 
-    public static String genericName(String shortName) {
-        return GENERIC.getOrDefault(shortName.toLowerCase(), shortName);
+    public static final class Builder {
+        private AllergyIndex allergies;
+        private DoseLimitTable doseLimits;
+        private final List<SemanticRule> rules = new ArrayList<>(BuiltinRules.all());
+        private final Set<String> disabled = new HashSet<>();
+        private boolean timing = false;
+        private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+        private Builder() {
+            for (SemanticRule r : ServiceLoader.load(SemanticRule.class)) rules.add(r);
+        }
+
+        public Builder allergies(AllergyIndex allergies) {
+            this.allergies = allergies;
+            return this;
+        }
+
+        public Builder doseLimits(DoseLimitTable doseLimits) {
+            this.doseLimits = doseLimits;
+            return this;
+        }
+
+        // Adds a rule after the built-in and service-loaded ones.
+        public Builder rule(SemanticRule rule) {
+            rules.add(rule);
+            return this;
+        }
+
+        public Builder disable(String id) {
+            disabled.add(id);
+            return this;
+        }
+
+        public Builder enable(String id) {
+            disabled.remove(id);
+            return this;
+        }
+
+        public Builder timing(boolean timing) {
+            this.timing = timing;
+            return this;
+        }
+
+        // Prescriptions with at least this many medications are checked in parallel chunks.
+        public Builder parallelThreshold(int medications) {
+            this.parallelThreshold = Math.max(1, medications);
+            return this;
+        }
+
+        // Applies -Dmedscript.rules.disabled and -Dmedscript.rules.timing.
+        public Builder systemProperties() {
+            String off = System.getProperty(DISABLED_PROPERTY, "");
+            for (String id : off.split(",")) {
+                if (!id.isBlank()) disable(id.trim());
+            }
+            if (Boolean.getBoolean(TIMING_PROPERTY)) timing = true;
+            return this;
+        }
+
+        public SemanticAnalyzer build() {
+            Set<String> ids = new LinkedHashSet<>();
+            List<SemanticRule> enabled = new ArrayList<>();
+            for (SemanticRule r : rules) {
+                if (!ids.add(r.id())) throw new IllegalArgumentException("Duplicate semantic rule id '" + r.id() + "'");
+                if (!disabled.contains(r.id())) enabled.add(r);
+            }
+            for (String id : disabled) {
+                if (!ids.contains(id)) throw new IllegalArgumentException("Unknown semantic rule '" + id + "' (known: " + ids + ")");
+            }
+            return new SemanticAnalyzer(this, enabled.toArray(new SemanticRule[0]));
+        }
     }
 }
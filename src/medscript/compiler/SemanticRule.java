@@ -0,0 +1,46 @@
+package medscript.compiler;
+
+import java.util.*;
+import medscript.compiler.AST.*;
+import medscript.compiler.Parser.Diagnostic;
+
+// A semantic check run by SemanticAnalyzer. Every enabled rule is called once
+// per medication inside a single pass over Program.medications, in
+// registration order, so diagnostics keep a stable order. Rules may be called
+// from several threads at once and must keep per-program data in the object
+// returned by prepare(). Site rules are found through java.util.ServiceLoader
+// (META-INF/services/medscript.compiler.SemanticRule).
+public interface SemanticRule {
+
+    // AST data a rule reads. Rules that only read medication fields are
+    // local: their result for a medication depends on that medication alone.
+    enum Field {
+        PATIENT, ALLERGIES, MEDICATIONS,
+        NAME, FORM, DOSE, ROUTE, FREQUENCY, DURATION, FOOD, EXTRAS;
+
+        public boolean isProgramWide() {
+            return this == PATIENT || this == ALLERGIES || this == MEDICATIONS;
+        }
+    }
+
+    // Stable id used to enable/disable the rule (e.g. -Dmedscript.rules.disabled=duplicate).
+    String id();
+
+    Set<Field> fields();
+
+    // Per-program state shared by all check() calls of one analysis; null when not needed.
+    default Object prepare(Program p, SemanticAnalyzer analyzer) {
+        return null;
+    }
+
+    // Runs once per program, before the medication pass.
+    default void checkProgram(Program p, Object state, List<Diagnostic> out) {
+    }
+
+    void checkMedication(Medication m, int index, Object state, List<Diagnostic> out);
+
+    default boolean isLocal() {
+        for (Field f : fields()) if (f.isProgramWide()) return false;
+        return true;
+    }
+}
@@ -0,0 +1,258 @@
+package medscript.compiler;
+
+import java.util.Arrays;
+
+// Token stream stored column-wise in primitive arrays over the source text.
+// Lexemes are only turned into Strings when somebody asks for them.
+public final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final String EOF_LEXEME = "<EOF>";
+
+    private CharSequence source;
+    private byte[] types;
+    private int[] starts;
+    private int[] ends;
+    private int[] lines;
+    private int[] columns;
+    // only used for streams that did not come from a source text (see of(Lexer))
+    private String[] lexemes;
+    private int size;
+
+    public TokenBuffer() {
+        this(256);
+    }
+
+    public TokenBuffer(int capacity) {
+        capacity = Math.max(capacity, 16);
+        types = new byte[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        lines = new int[capacity];
+        columns = new int[capacity];
+    }
+
+    public static TokenBuffer lex(CharSequence source) {
+        TokenBuffer buf = new TokenBuffer(Math.max(16, source.length() / 4));
+        buf.relex(source);
+        return buf;
+    }
+
+    // Buffers the tokens of any Lexer; lexemes are kept as the lexer produced them.
+    public static TokenBuffer of(Lexer lexer) {
+        CompileEvents.Lex event = new CompileEvents.Lex();
+        event.begin();
+        TokenBuffer buf = new TokenBuffer();
+        buf.lexemes = new String[buf.types.length];
+        Token t;
+        do {
+            t = lexer.nextToken();
+            int i = buf.size;
+            buf.add(t.type, -1, -1, t.line, t.column);
+            buf.lexemes[i] = t.lexeme;
+        } while (t.type != TokenType.EOF);
+        if (event.shouldCommit()) {
+            event.chars = -1;   // a Reader's length is unknown
+            event.tokens = buf.size;
+            event.commit();
+        }
+        return buf;
+    }
+
+    // Replaces the contents with the tokens of a new source, reusing the arrays.
+    public void relex(CharSequence source) {
+        CompileEvents.Lex event = new CompileEvents.Lex();
+        event.begin();
+        this.source = source;
+        this.lexemes = null;
+        this.size = 0;
+        new MedLexer(source).tokenize(this);
+        if (event.shouldCommit()) {
+            event.chars = source.length();
+            event.tokens = size;
+            event.commit();
+        }
+    }
+
+    // What edit() changed: old tokens [from, oldEnd) became [from, newEnd); the
+    // ones after them moved by lineDelta lines. 'lexed' counts the tokens lexed.
+    public static final class Edit {
+        public final TokenBuffer tokens;
+        public final int from, oldEnd, newEnd, lineDelta, lexed;
+
+        Edit(TokenBuffer tokens, int from, int oldEnd, int newEnd, int lineDelta, int lexed) {
+            this.tokens = tokens;
+            this.from = from;
+            this.oldEnd = oldEnd;
+            this.newEnd = newEnd;
+            this.lineDelta = lineDelta;
+            this.lexed = lexed;
+        }
+
+        // new index of an old token that survived the edit, or -1
+        public int map(int old) {
+            if (old < from) return old;
+            return old >= oldEnd ? old - oldEnd + newEnd : -1;
+        }
+
+        // how far a surviving old token moved down
+        public int lineDelta(int old) {
+            return old < from ? 0 : lineDelta;
+        }
+    }
+
+    // The tokens of 'next', an edited version of this buffer's source, lexing again
+    // only the lines the edit touched: the common prefix and suffix of the two texts
+    // keep their tokens, moved by the edit's line and offset shift. Tokens that come
+    // out of the re-lexed lines unchanged are also left out of the damaged range.
+    // This buffer is not modified.
+    public Edit edit(CharSequence next) {
+        if (source == null || lexemes != null) {
+            TokenBuffer all = lex(next);
+            return new Edit(all, 0, size, all.size, 0, all.size);
+        }
+        CharSequence prev = source;
+        int prevLen = prev.length(), nextLen = next.length();
+        int max = Math.min(prevLen, nextLen);
+        int a = 0;
+        while (a < max && prev.charAt(a) == next.charAt(a)) a++;
+        int b = 0;
+        while (b < max - a && prev.charAt(prevLen - 1 - b) == next.charAt(nextLen - 1 - b)) b++;
+
+        // re-lex whole lines: from the start of the first touched line through the
+        // '\n' that ends the last one, or to the end when no '\n' follows the edit
+        int from = lastNewline(next, a - 1) + 1;
+        int nextStop = nextNewline(next, nextLen - b);
+        int prevStop;
+        if (nextStop < 0) {
+            nextStop = nextLen + 1;
+            prevStop = prevLen + 1;
+        } else {
+            nextStop++;
+            prevStop = nextStop + prevLen - nextLen;
+        }
+        int first = firstAtOrAfter(from);
+        int rest = firstAtOrAfter(prevStop);
+        int line = first > 0 ? lines[first - 1] + newlines(prev, ends[first - 1], from) : 1 + newlines(prev, 0, from);
+        int lineDelta = newlines(next, from, Math.min(nextStop, nextLen)) - newlines(prev, from, Math.min(prevStop, prevLen));
+        int shift = nextLen - prevLen;
+
+        CompileEvents.Lex event = new CompileEvents.Lex();
+        event.begin();
+        TokenBuffer buf = new TokenBuffer(first + (size - rest) + 64);
+        buf.source = next;
+        System.arraycopy(types, 0, buf.types, 0, first);
+        System.arraycopy(starts, 0, buf.starts, 0, first);
+        System.arraycopy(ends, 0, buf.ends, 0, first);
+        System.arraycopy(lines, 0, buf.lines, 0, first);
+        System.arraycopy(columns, 0, buf.columns, 0, first);
+        buf.size = first;
+        new MedLexer(next).tokenize(buf, from, line, nextStop);
+        int lexed = buf.size - first;
+        for (int i = rest; i < size; i++) {
+            buf.add(type(i), starts[i] + shift, ends[i] + shift, lines[i] + lineDelta, columns[i]);
+        }
+        if (event.shouldCommit()) {
+            event.chars = Math.min(nextStop, nextLen) - from;
+            event.tokens = lexed;
+            event.commit();
+        }
+
+        // narrow the damage to the tokens that really differ
+        int lo = first, oldHi = rest, newHi = first + lexed;
+        while (lo < oldHi && lo < newHi && buf.sameToken(lo, this, lo, 0)) lo++;
+        while (oldHi > lo && newHi > lo && buf.sameToken(newHi - 1, this, oldHi - 1, lineDelta)) { oldHi--; newHi--; }
+        return new Edit(buf, lo, oldHi, newHi, lineDelta, lexed);
+    }
+
+    private boolean sameToken(int i, TokenBuffer old, int j, int lineDelta) {
+        if (types[i] != old.types[j] || lines[i] != old.lines[j] + lineDelta || columns[i] != old.columns[j]) return false;
+        int len = ends[i] - starts[i];
+        if (len != old.ends[j] - old.starts[j]) return false;
+        for (int k = 0; k < len; k++) {
+            if (source.charAt(starts[i] + k) != old.source.charAt(old.starts[j] + k)) return false;
+        }
+        return true;
+    }
+
+    // index of the first token starting at or after 'offset'
+    private int firstAtOrAfter(int offset) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] < offset) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static int lastNewline(CharSequence s, int from) {
+        for (int i = from; i >= 0; i--) if (s.charAt(i) == '\n') return i;
+        return -1;
+    }
+
+    private static int nextNewline(CharSequence s, int from) {
+        for (int i = from; i < s.length(); i++) if (s.charAt(i) == '\n') return i;
+        return -1;
+    }
+
+    private static int newlines(CharSequence s, int from, int to) {
+        int n = 0;
+        for (int i = from; i < to; i++) if (s.charAt(i) == '\n') n++;
+        return n;
+    }
+
+    void add(TokenType type, int start, int end, int line, int column) {
+        if (size == types.length) grow();
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        lines[size] = line;
+        columns[size] = column;
+        size++;
+    }
+
+    private void grow() {
+        int cap = types.length * 2;
+        types = Arrays.copyOf(types, cap);
+        starts = Arrays.copyOf(starts, cap);
+        ends = Arrays.copyOf(ends, cap);
+        lines = Arrays.copyOf(lines, cap);
+        columns = Arrays.copyOf(columns, cap);
+        if (lexemes != null) lexemes = Arrays.copyOf(lexemes, cap);
+    }
+
+    public int size() { return size; }
+    public CharSequence source() { return source; }
+    public TokenType type(int i) { return TYPES[types[i]]; }
+    public int start(int i) { return starts[i]; }
+    public int end(int i) { return ends[i]; }
+    public int line(int i) { return lines[i]; }
+    public int column(int i) { return columns[i]; }
+
+    public String lexeme(int i) {
+        if (lexemes != null) return lexemes[i];
+        if (types[i] == TokenType.EOF.ordinal()) return EOF_LEXEME;
+        return source.subSequence(starts[i], ends[i]).toString();
+    }
+
+    public boolean lexemeEquals(int i, String s) {
+        if (lexemes != null) return s.equals(lexemes[i]);
+        if (types[i] == TokenType.EOF.ordinal()) return EOF_LEXEME.equals(s);
+        int start = starts[i];
+        int len = ends[i] - start;
+        if (len != s.length()) return false;
+        for (int k = 0; k < len; k++) {
+            if (source.charAt(start + k) != s.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    public void appendLexeme(int i, StringBuilder sb) {
+        if (lexemes != null || types[i] == TokenType.EOF.ordinal()) sb.append(lexeme(i));
+        else sb.append(source, starts[i], ends[i]);
+    }
+
+    public Token token(int i) {
+        return new Token(type(i), lexeme(i), lines[i], columns[i]);
+    }
+}
@@ -16,8 +16,38 @@ public class MedScriptGUI extends JFrame {
     private final JTextArea jsonArea = new JTextArea(20, 60);
     private final JTextArea diagArea = new JTextArea(12, 60);
 
-    private final DefaultTableModel tokenModel = new DefaultTableModel(
-            new Object[]{"Type", "Lexeme", "Line", "Col"}, 0);
+    private final TokenTableModel tokenModel = new TokenTableModel();
+    private final JTable tokenTable = new JTable(tokenModel);
+
+    private final JLabel statusBar = new JLabel(" ");
+    private final JCheckBox liveBox = new JCheckBox("Live", true);
+
+    // keeps each result's tokens for the tokens table
+    private static final MedScriptCompiler COMPILER = newCompiler();
+    // the editor's document, recompiled after each edit from what the last compile left
+    private static final IncrementalCompiler EDITOR = COMPILER.incremental();
+    private static final int DEBOUNCE_MILLIS = 250;
+
+    // Restarted by every edit; fires once typing pauses.
+    private final javax.swing.Timer debounce = new javax.swing.Timer(DEBOUNCE_MILLIS, e -> compile());
+    // The latest compile; older ones are cancelled and their results dropped.
+    private SwingWorker<Compiled, Void> worker;
+    private long generation = 0;
+
+    // Everything one compile shows, built off the EDT and applied in one go.
+    private static final class Compiled {
+        final TokenBuffer tokens;
+        final String diagnostics;
+        final String json;
+        final String status;
+
+        Compiled(TokenBuffer tokens, String diagnostics, String json, String status) {
+            this.tokens = tokens;
+            this.diagnostics = diagnostics;
+            this.json = json;
+            this.status = status;
+        }
+    }
 
     private static final Color PRIMARY_COLOR = new Color(41, 128, 185);
     private static final Color SUCCESS_COLOR = new Color(39, 174, 96);
@@ -26,6 +56,14 @@ public class MedScriptGUI extends JFrame {
     private static final Color PANEL_COLOR = Color.WHITE;
     private static final Color TEXT_COLOR = new Color(44, 62, 80);
 
+    private static MedScriptCompiler newCompiler() {
+        try {
+            return MedScriptCompiler.builder().keepTokens(true).build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     public MedScriptGUI() {
         super("MedScript Compiler - Doctor Shorthand → JSON");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -54,14 +92,45 @@ public class MedScriptGUI extends JFrame {
         tabs.setFont(new Font("Segoe UI", Font.PLAIN, 13));
         tabs.setBackground(BG_COLOR);
 
-        JTable tokenTable = new JTable(tokenModel);
         tokenTable.setFont(new Font("Consolas", Font.PLAIN, 13));
         tokenTable.setRowHeight(25);
+        tokenTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        tokenTable.setToolTipText("Double-click or press Enter to show the token in the input");
         tokenTable.getTableHeader().setFont(new Font("Segoe UI", Font.BOLD, 13));
         tokenTable.getTableHeader().setBackground(PRIMARY_COLOR);
         tokenTable.getTableHeader().setForeground(Color.WHITE);
+        tokenTable.addMouseListener(new java.awt.event.MouseAdapter() {
+            public void mouseClicked(java.awt.event.MouseEvent evt) {
+                if (evt.getClickCount() == 2) jumpToToken(tokenTable.rowAtPoint(evt.getPoint()));
+            }
+        });
+        tokenTable.getInputMap(JComponent.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT)
+                .put(KeyStroke.getKeyStroke("ENTER"), "jumpToToken");
+        tokenTable.getActionMap().put("jumpToToken", new AbstractAction() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                jumpToToken(tokenTable.getSelectedRow());
+            }
+        });
         JScrollPane tokenScroll = new JScrollPane(tokenTable);
-        tabs.addTab("Tokens", tokenScroll);
+
+        JComboBox<Object> typeFilter = new JComboBox<>();
+        typeFilter.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        typeFilter.addItem("All types");
+        for (TokenType t : TokenType.values()) typeFilter.addItem(t);
+        typeFilter.addActionListener(e -> {
+            Object selected = typeFilter.getSelectedItem();
+            tokenModel.setFilter(selected instanceof TokenType ? (TokenType) selected : null);
+        });
+        JPanel filterBar = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 4));
+        filterBar.setBackground(BG_COLOR);
+        JLabel filterLabel = new JLabel("Show:");
+        filterLabel.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        filterBar.add(filterLabel);
+        filterBar.add(typeFilter);
+        JPanel tokenPanel = new JPanel(new BorderLayout());
+        tokenPanel.add(filterBar, BorderLayout.NORTH);
+        tokenPanel.add(tokenScroll, BorderLayout.CENTER);
+        tabs.addTab("Tokens", tokenPanel);
 
         diagArea.setFont(new Font("Consolas", Font.PLAIN, 13));
         diagArea.setEditable(false);
@@ -120,8 +189,25 @@ public class MedScriptGUI extends JFrame {
             examplesMenu.show(examplesBtn, 0, examplesBtn.getHeight());
         });
 
+        liveBox.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        liveBox.setBackground(BG_COLOR);
+        liveBox.setToolTipText("Compile while typing");
+        btns.add(liveBox);
+
+        debounce.setRepeats(false);
+        inputArea.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            public void insertUpdate(javax.swing.event.DocumentEvent e) { edited(); }
+            public void removeUpdate(javax.swing.event.DocumentEvent e) { edited(); }
+            public void changedUpdate(javax.swing.event.DocumentEvent e) { }
+        });
+
+        statusBar.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        statusBar.setForeground(TEXT_COLOR);
+        statusBar.setBorder(BorderFactory.createEmptyBorder(4, 12, 6, 12));
+
         add(btns, BorderLayout.NORTH);
         add(split, BorderLayout.CENTER);
+        add(statusBar, BorderLayout.SOUTH);
 
         pack();
         setLocationRelativeTo(null);
@@ -151,48 +237,97 @@ public class MedScriptGUI extends JFrame {
         return btn;
     }
 
+    private void edited() {
+        if (liveBox.isSelected()) debounce.restart();
+    }
+
+    // Compiles the current text on a background worker; a newer compile supersedes it.
     private void compile() {
+        debounce.stop();
+        if (worker != null) worker.cancel(false);
         String input = inputArea.getText();
-        tokenModel.setRowCount(0);
-        diagArea.setText("");
-        jsonArea.setText("");
-
-        try {
-            // Tokens
-            MedLexer lx = new MedLexer(new StringReader(input));
-            Token t;
-            do {
-                t = lx.nextToken();
-                tokenModel.addRow(new Object[]{t.type, t.lexeme, t.line, t.column});
-            } while (t.type != TokenType.EOF);
-
-            // Parse
-            Parser parser = new Parser(new StringReader(input));
-            ParseResult pr = parser.parse();
+        long gen = ++generation;
+        statusBar.setText("Compiling…");
+        worker = new SwingWorker<Compiled, Void>() {
+            @Override protected Compiled doInBackground() {
+                return compileText(input);
+            }
 
-            // Semantic
-            SemanticAnalyzer sem = new SemanticAnalyzer();
-            java.util.List<Diagnostic> semDiags = sem.analyze(pr.program);
+            @Override protected void done() {
+                if (isCancelled() || gen != generation) return;
+                try {
+                    apply(get());
+                } catch (Exception ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    diagArea.setText("ERROR: " + cause.getMessage());
+                    statusBar.setText("Compile failed");
+                }
+            }
+        };
+        worker.execute();
+    }
 
-            java.util.List<Diagnostic> all = new ArrayList<>();
-            all.addAll(pr.diagnostics);
-            all.addAll(semDiags);
+    private static Compiled compileText(String input) {
+        long t0 = System.nanoTime();
+        MedScriptCompiler.Result result;
+        int relexed, reparsed, steps;
+        synchronized (EDITOR) {
+            result = EDITOR.compile(input);
+            relexed = EDITOR.relexedTokens();
+            reparsed = EDITOR.reparsedSteps();
+            steps = EDITOR.steps();
+        }
+        long nanos = System.nanoTime() - t0;
 
-            if (all.isEmpty()) diagArea.append("✅ No errors/warnings.\n");
-            else for (Diagnostic d: all) diagArea.append(d.toString() + "\n");
+        TokenBuffer tokens = result.tokens;
+        StringBuilder diags = new StringBuilder();
+        int errors = 0;
+        if (result.diagnostics.isEmpty()) diags.append("✅ No errors/warnings.\n");
+        for (Diagnostic d: result.diagnostics) {
+            diags.append(d).append('\n');
+            if (d.level == Diagnostic.Level.ERROR) errors++;
+        }
+        int warnings = result.diagnostics.size() - errors;
+        String status = String.format("Compiled in %.1f ms · %d tokens · %d medications · %d error%s, %d warning%s"
+                        + " · re-lexed %d tokens, re-parsed %d of %d steps",
+                nanos / 1e6, tokens.size(), result.program != null ? result.program.medications.size() : 0,
+                errors, errors == 1 ? "" : "s", warnings, warnings == 1 ? "" : "s", relexed, reparsed, steps);
+        return new Compiled(tokens, diags.toString(), result.json(), status);
+    }
 
-            jsonArea.setText(JsonEmitter.toJson(pr.program));
+    private void apply(Compiled c) {
+        tokenModel.setTokens(c.tokens);
+        diagArea.setText(c.diagnostics);
+        jsonArea.setText(c.json);
+        statusBar.setText(c.status);
+    }
 
-        } catch (Exception ex) {
-            diagArea.setText("ERROR: " + ex.getMessage());
+    // Selects a token's text in the input; positions come from the token's line and column.
+    private void jumpToToken(int row) {
+        if (row < 0) return;
+        TokenBuffer tokens = tokenModel.getTokens();
+        int i = tokenModel.tokenAt(row);
+        try {
+            int line = Math.min(tokens.line(i), inputArea.getLineCount()) - 1;
+            int start = Math.min(inputArea.getLineStartOffset(line) + tokens.column(i) - 1, inputArea.getLineEndOffset(line));
+            int end = Math.min(start + tokens.end(i) - tokens.start(i), inputArea.getDocument().getLength());
+            inputArea.requestFocusInWindow();
+            inputArea.select(start, end);
+        } catch (javax.swing.text.BadLocationException ex) {
+            // the text changed since this compile; the next one refreshes the table
         }
     }
 
     private void clearAll() {
         inputArea.setText("");
+        // nothing to compile: stop the timer the edit started and drop any running compile
+        debounce.stop();
+        if (worker != null) worker.cancel(false);
+        generation++;
         jsonArea.setText("");
         diagArea.setText("");
-        tokenModel.setRowCount(0);
+        tokenModel.setTokens(null);
+        statusBar.setText(" ");
     }
 
     private void loadSample(String filePath) {
@@ -227,6 +362,17 @@ public class MedScriptGUI extends JFrame {
     }
 
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new MedScriptGUI().setVisible(true));
+        SwingUtilities.invokeLater(() -> {
+            MedScriptGUI gui = new MedScriptGUI();
+            gui.setVisible(true);
+            // training run for the CDS archive (scripts/build-cds.sh): compile the given files and exit
+            if (args.length > 0 && "--training".equals(args[0])) {
+                for (int i = 1; i < args.length; i++) {
+                    gui.loadSample(args[i]);
+                    gui.apply(compileText(gui.inputArea.getText()));
+                }
+                SwingUtilities.invokeLater(() -> System.exit(0));
+            }
+        });
     }
 }
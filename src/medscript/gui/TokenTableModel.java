@@ -0,0 +1,90 @@
+package medscript.gui;
+
+import javax.swing.table.AbstractTableModel;
+import medscript.compiler.TokenBuffer;
+import medscript.compiler.TokenType;
+
+// Tokens table straight over a compiled TokenBuffer: cells are read from its
+// arrays when a row is painted, so a new token stream costs one event however
+// many tokens it has. An optional TokenType filter keeps the matching token
+// indexes in an int[].
+final class TokenTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] COLUMNS = {"Type", "Lexeme", "Line", "Col"};
+
+    private TokenBuffer tokens;
+    private TokenType filter;
+    // token index per row when filtered, null otherwise
+    private int[] rows;
+
+    // Shows a new token stream (null for none), keeping the filter.
+    public void setTokens(TokenBuffer tokens) {
+        this.tokens = tokens;
+        rows = select(tokens, filter);
+        // rows change, columns stay: one data event keeps widths and the header
+        fireTableDataChanged();
+    }
+
+    // Only tokens of this type; null shows all of them.
+    public void setFilter(TokenType filter) {
+        this.filter = filter;
+        rows = select(tokens, filter);
+        fireTableDataChanged();
+    }
+
+    public TokenType getFilter() {
+        return filter;
+    }
+
+    public TokenBuffer getTokens() {
+        return tokens;
+    }
+
+    // index into getTokens() of a table row
+    public int tokenAt(int row) {
+        return rows != null ? rows[row] : row;
+    }
+
+    private static int[] select(TokenBuffer tokens, TokenType filter) {
+        if (tokens == null || filter == null) return null;
+        int n = 0;
+        for (int i = 0; i < tokens.size(); i++) if (tokens.type(i) == filter) n++;
+        int[] r = new int[n];
+        n = 0;
+        for (int i = 0; i < tokens.size(); i++) if (tokens.type(i) == filter) r[n++] = i;
+        return r;
+    }
+
+    @Override
+    public int getRowCount() {
+        if (tokens == null) return 0;
+        return rows != null ? rows.length : tokens.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == 0 ? TokenType.class : column == 1 ? String.class : Integer.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        int i = tokenAt(row);
+        switch (column) {
+            case 0: return tokens.type(i);
+            case 1: return tokens.lexeme(i);
+            case 2: return tokens.line(i);
+            default: return tokens.column(i);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package medscript.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+import medscript.Main;
+import medscript.compiler.*;
+
+// Long-running compiler on a Unix domain socket, so shell scripts and cron jobs
+// skip JVM startup, class loading and JIT warm-up on every file.
+//
+// Protocol: one prescription per connection. The client writes the source and
+// shuts down its output; the daemon answers with the single-file report of
+// medscript.Main and closes. Any client that can half-close works, e.g.
+//   socat -t5 - UNIX-CONNECT:/tmp/medscript-$USER.sock < samples/sample_ok.med
+public class CompileDaemon {
+
+    private static final String USAGE =
+            "Usage: java -cp out medscript.Main --daemon [--socket <path>] [--max-kb KB] [--cache <entries>]\n"
+            + "       java -cp out medscript.Main --client [--socket <path>] <file|->...";
+
+    // Warm-up input: every section and token type, clean lines plus syntax and
+    // semantic errors (allergy conflict, dose limit, duplicate, missing fields).
+    private static final String WARMUP_RX =
+            "  Tab PCM 500mg po tds 5d after_food\n"
+            + "  Cap Amox 250mg po q8h 7d\n"
+            + "  Syr Cetirizine 5mg/5ml 10ml po od 5d\n"
+            + "  Tab Ibuprofen 1/2 g po bd 3d pc crush\n"
+            + "  Drops Salbutamol 2 drops inhale qid 1w\n"
+            + "  Inj Ceftriaxone 1g iv stat 1d\n"
+            + "  Oint Hydrocortisone 1% topical bd 2w  # thin layer\n"
+            + "  Tab PCM 1500mg po q4h 5d\n"
+            + "  Tab Metformin mg po xyz 5d\n"
+            + "  Cap Omeprazole 20mg po od 0d\n";
+    private static final String WARMUP =
+            "# warm-up\npatient Nimal age 22 weight 58kg\nallergy penicillin\n\nrx:\n" + WARMUP_RX.repeat(5)
+            + "\nnotes:\n  review: after 2 weeks\n  avoid alcohol\n";
+
+    private final MedScriptCompiler compiler;
+    private final Path socket;
+    private final int maxBytes;
+    private final ServerSocketChannel channel;
+    private final ExecutorService executor = CompileServer.newRequestExecutor();
+
+    public CompileDaemon(MedScriptCompiler compiler, Path socket, int maxBytes) throws IOException {
+        this.compiler = compiler;
+        this.socket = socket;
+        this.maxBytes = maxBytes;
+        removeStaleSocket(socket);
+        this.channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(socket));
+        try {
+            Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system; the socket keeps the directory's permissions
+        }
+    }
+
+    // $MEDSCRIPT_SOCKET, or medscript-<user>.sock in the temp directory
+    public static Path defaultSocket() {
+        String env = System.getenv("MEDSCRIPT_SOCKET");
+        if (env != null && !env.isBlank()) return Path.of(env);
+        return Path.of(System.getProperty("java.io.tmpdir"), "medscript-" + System.getProperty("user.name") + ".sock");
+    }
+
+    // A socket file left by a crashed daemon is removed; a live one is an error.
+    private static void removeStaleSocket(Path socket) throws IOException {
+        if (!Files.exists(socket)) return;
+        SocketChannel probe;
+        try {
+            probe = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (SocketException e) {
+            Files.delete(socket);
+            return;
+        }
+        probe.close();
+        throw new IOException("A daemon is already listening on " + socket);
+    }
+
+    // Accepts connections until close(); each one is served on its own (virtual) thread.
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                SocketChannel client = channel.accept();
+                executor.execute(() -> handle(client));
+            }
+        } catch (ClosedChannelException e) {
+            // close() was called
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        executor.shutdown();
+        Files.deleteIfExists(socket);
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            InputStream in = Channels.newInputStream(client);
+            byte[] source = in.readNBytes(maxBytes);
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(source.length * 4 + 256);
+            PrintStream out = new PrintStream(buf, false, StandardCharsets.UTF_8);
+            if (source.length == maxBytes && in.read() >= 0) {
+                out.println("ERROR: input exceeds " + maxBytes + " bytes");
+            } else {
+                Main.printReport(compiler.compile(new String(source, StandardCharsets.UTF_8)), out);
+            }
+            out.flush();
+            ByteBuffer reply = ByteBuffer.wrap(buf.toByteArray());
+            while (reply.hasRemaining()) client.write(reply);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("medscript daemon: " + e);
+        }
+    }
+
+    // Sends each input to the daemon and prints the reports; 3 when the daemon is unreachable.
+    public static int client(String[] args) throws IOException {
+        Path socket = defaultSocket();
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--socket".equals(args[i]) && i + 1 < args.length) socket = Path.of(args[++i]);
+            else if (args[i].startsWith("--")) { System.err.println("Unknown option: " + args[i]); System.err.println(USAGE); return 1; }
+            else inputs.add(args[i]);
+        }
+        if (inputs.isEmpty()) inputs.add("-");
+
+        for (String input : inputs) {
+            byte[] source = "-".equals(input) ? System.in.readAllBytes() : Files.readAllBytes(Path.of(input));
+            if (inputs.size() > 1) System.out.println("==> " + input + " <==");
+            try (SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+                ByteBuffer request = ByteBuffer.wrap(source);
+                while (request.hasRemaining()) ch.write(request);
+                ch.shutdownOutput();
+                Channels.newInputStream(ch).transferTo(System.out);
+            } catch (SocketException | NoSuchFileException e) {
+                System.err.println("No MedScript daemon on " + socket + " (start one with --daemon)");
+                return 3;
+            }
+        }
+        System.out.flush();
+        return 0;
+    }
+
+    // Runs the whole pipeline (uncached) so the first client is not the one paying
+    // for JIT compilation. The throwaway analyzer keeps the warm-up out of the
+    // served compiler's rule counts.
+    static void warmUp() throws IOException {
+        SemanticAnalyzer analyzer = SemanticAnalyzer.builder().systemProperties().build();
+        MedScriptCompiler warm = MedScriptCompiler.builder().analyzer(analyzer).build();
+        for (int i = 0; i < 2000; i++) warm.compile(WARMUP);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path socket = defaultSocket();
+        int maxKb = 16 << 10;
+        int cacheEntries = 0;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("--socket".equals(a) && i + 1 < args.length) socket = Path.of(args[++i]);
+            else if ("--max-kb".equals(a) && i + 1 < args.length) maxKb = Integer.parseInt(args[++i]);
+            else if ("--cache".equals(a) && i + 1 < args.length) cacheEntries = Integer.parseInt(args[++i]);
+            else { System.err.println("Unknown option: " + a); System.err.println(USAGE); System.exit(1); }
+        }
+
+        MedScriptCompiler.Builder b = MedScriptCompiler.builder()
+                .metrics(new CompileMetrics(SemanticAnalyzer.shared()).register("daemon"));
+        if (cacheEntries > 0) b.cache(cacheEntries, 256L << 20, null);
+        MedScriptCompiler compiler = b.build();
+        warmUp();
+
+        CompileDaemon daemon = new CompileDaemon(compiler, socket, maxKb << 10);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try { daemon.close(); } catch (IOException ignored) { }
+        }));
+        System.err.println("MedScript daemon listening on " + socket);
+        daemon.serve();
+    }
+}
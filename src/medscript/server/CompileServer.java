@@ -0,0 +1,248 @@
+package medscript.server;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import medscript.compiler.*;
+import medscript.compiler.Parser.*;
+
+// Local HTTP compile service, so integrations pay for a compile instead of a
+// JVM start per prescription. Binds to the loopback interface only.
+//
+//   POST /compile        one prescription      -> {"diagnostics":[...],"program":{...}}
+//   POST /compile/batch  '---'-separated ones  -> NDJSON, one line per record
+//   GET  /stats          counters, throughput, latency percentiles and pipeline metrics
+//
+// Each exchange runs on its own virtual thread when the JVM has them (21+),
+// otherwise on a cached pool. Connections are kept alive between requests.
+public class CompileServer {
+
+    private static final String USAGE =
+            "Usage: java -cp out medscript.Main --serve [--port N] [--max-kb KB] [--max-records N] [--cache <entries>]";
+
+    public static final int DEFAULT_PORT = 8765;
+
+    private final MedScriptCompiler compiler;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int maxBytes;
+    private final int maxRecords;
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder compiles = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    // port 0 picks a free port (see port())
+    public CompileServer(MedScriptCompiler compiler, int port, int maxBytes, int maxRecords) throws IOException {
+        this.compiler = compiler;
+        this.maxBytes = maxBytes;
+        this.maxRecords = maxRecords;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/compile", ex -> handle(ex, "/compile", "POST", this::compileOne));
+        server.createContext("/compile/batch", ex -> handle(ex, "/compile/batch", "POST", this::compileBatch));
+        server.createContext("/stats", ex -> handle(ex, "/stats", "GET", this::stats));
+    }
+
+    // Virtual threads are looked up reflectively so the tree still builds and runs on 17.
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "medscript-http");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    // Waits up to 'seconds' for exchanges in progress, then closes the socket.
+    public void stop(int seconds) {
+        server.stop(seconds);
+        executor.shutdown();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    private interface Handler {
+        // returns the response body; the content type is set by the handler
+        byte[] handle(HttpExchange ex, byte[] body) throws IOException;
+    }
+
+    // Thrown for client errors that end the exchange with a status code.
+    private static final class HttpError extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange ex, String path, String method, Handler h) throws IOException {
+        long t0 = System.nanoTime();
+        requests.increment();
+        try (ex) {
+            int status = 200;
+            byte[] out;
+            try {
+                // contexts match by prefix, so /compilex and /stats/foo land here too
+                if (!ex.getRequestURI().getPath().equals(path)) throw new HttpError(404, "Not found");
+                if (!ex.getRequestMethod().equals(method)) {
+                    ex.getResponseHeaders().set("Allow", method);
+                    throw new HttpError(405, "Use " + method);
+                }
+                out = h.handle(ex, "POST".equals(method) ? readBody(ex) : null);
+            } catch (HttpError e) {
+                rejected.increment();
+                status = e.status;
+                // an unread body cannot be skipped cheaply, so drop the connection
+                if (status == 413) ex.getResponseHeaders().set("Connection", "close");
+                out = error(e.getMessage(), ex);
+            } catch (RuntimeException e) {
+                rejected.increment();
+                status = 500;
+                out = error(e.toString(), ex);
+            }
+            ex.sendResponseHeaders(status, out.length == 0 ? -1 : out.length);
+            ex.getResponseBody().write(out);
+            bytesOut.add(out.length);
+        } finally {
+            latency.record(System.nanoTime() - t0);
+        }
+    }
+
+    private byte[] readBody(HttpExchange ex) throws IOException {
+        String length = ex.getRequestHeaders().getFirst("Content-Length");
+        long declared;
+        try { declared = length == null ? -1 : Long.parseLong(length.trim()); }
+        catch (NumberFormatException e) { throw new HttpError(400, "Invalid Content-Length"); }
+        if (declared > maxBytes) {
+            throw new HttpError(413, "Request body exceeds " + maxBytes + " bytes");
+        }
+        InputStream in = ex.getRequestBody();
+        byte[] body = in.readNBytes(maxBytes);
+        if (body.length == maxBytes && in.read() >= 0) {
+            throw new HttpError(413, "Request body exceeds " + maxBytes + " bytes");
+        }
+        bytesIn.add(body.length);
+        return body;
+    }
+
+    private byte[] compileOne(HttpExchange ex, byte[] body) throws IOException {
+        MedScriptCompiler.Result r = compiler.compile(new String(body, StandardCharsets.UTF_8));
+        compiles.increment();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(r.json.length + 256);
+        writeResult(out, -1, 0, r);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        return out.toByteArray();
+    }
+
+    private byte[] compileBatch(HttpExchange ex, byte[] body) throws IOException {
+        List<PrescriptionStream.Record> records = new ArrayList<>();
+        try (PrescriptionStream in = new PrescriptionStream(new StringReader(new String(body, StandardCharsets.UTF_8)))) {
+            PrescriptionStream.Record rec;
+            while ((rec = in.nextRecord()) != null) {
+                if (records.size() == maxRecords) throw new HttpError(413, "More than " + maxRecords + " records");
+                records.add(rec);
+            }
+        }
+        List<String> sources = new ArrayList<>(records.size());
+        for (PrescriptionStream.Record rec : records) sources.add(rec.source);
+        List<MedScriptCompiler.Result> results = compiler.compileAll(sources);
+        compiles.add(results.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4 + 64);
+        for (int i = 0; i < results.size(); i++) {
+            writeResult(out, records.get(i).index, records.get(i).startLine, results.get(i));
+            out.write('\n');
+        }
+        ex.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+        return out.toByteArray();
+    }
+
+    private byte[] stats(HttpExchange ex, byte[] body) throws IOException {
+        double secs = (System.nanoTime() - startNanos) / 1e9;
+        StringBuilder w = new StringBuilder(512);
+        w.append("{\"uptimeSeconds\":").append(String.format(Locale.ROOT, "%.1f", secs))
+         .append(",\"requests\":").append(requests.sum())
+         .append(",\"compiles\":").append(compiles.sum())
+         .append(",\"rejected\":").append(rejected.sum())
+         .append(",\"bytesIn\":").append(bytesIn.sum())
+         .append(",\"bytesOut\":").append(bytesOut.sum())
+         .append(",\"compilesPerSecond\":").append(String.format(Locale.ROOT, "%.1f", compiles.sum() / secs))
+         .append(",\"latencyMs\":{\"count\":").append(latency.count())
+         .append(String.format(Locale.ROOT, ",\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"max\":%.3f}",
+                 latency.meanMillis(), latency.percentileMillis(0.5), latency.percentileMillis(0.9),
+                 latency.percentileMillis(0.99), latency.maxMillis()));
+        if (compiler.metrics() != null) w.append(",\"pipeline\":").append(compiler.metrics().dump());
+        CompileCache cache = compiler.cache();
+        if (cache != null) {
+            CompileCache.Stats s = cache.stats();
+            w.append(",\"cache\":{\"hits\":").append(s.hits).append(",\"misses\":").append(s.misses)
+             .append(",\"entries\":").append(s.entries).append(",\"bytes\":").append(s.bytes).append('}');
+        }
+        w.append("}\n");
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        return w.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The batch NDJSON line shape without "file"; record < 0 leaves out record and line.
+    static void writeResult(OutputStream out, int record, int line, MedScriptCompiler.Result r) throws IOException {
+        StringBuilder w = new StringBuilder(256).append('{');
+        if (record >= 0) w.append("\"record\":").append(record).append(",\"line\":").append(line).append(',');
+        w.append("\"diagnostics\":");
+        JsonEmitter.writeDiagnostics(r.diagnostics, w);
+        w.append(",\"program\":");
+        out.write(w.toString().getBytes(StandardCharsets.UTF_8));
+        out.write(r.json);
+        out.write('}');
+    }
+
+    private static byte[] error(String message, HttpExchange ex) throws IOException {
+        StringBuilder w = new StringBuilder("{\"error\":");
+        JsonEmitter.writeString(message, w);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        return w.append("}\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        int maxKb = 1024;
+        int maxRecords = 10_000;
+        int cacheEntries = 0;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("--port".equals(a) && i + 1 < args.length) port = Integer.parseInt(args[++i]);
+            else if ("--max-kb".equals(a) && i + 1 < args.length) maxKb = Integer.parseInt(args[++i]);
+            else if ("--max-records".equals(a) && i + 1 < args.length) maxRecords = Integer.parseInt(args[++i]);
+            else if ("--cache".equals(a) && i + 1 < args.length) cacheEntries = Integer.parseInt(args[++i]);
+            else { System.err.println("Unknown option: " + a); System.err.println(USAGE); System.exit(1); }
+        }
+
+        MedScriptCompiler.Builder b = MedScriptCompiler.builder().compact(true)
+                .metrics(new CompileMetrics(SemanticAnalyzer.shared()).register("http"));
+        if (cacheEntries > 0) b.cache(cacheEntries, 256L << 20, null);
+        CompileServer server = new CompileServer(b.build(), port, maxKb << 10, maxRecords);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(2)));
+        server.start();
+        System.err.println("MedScript compile service on http://127.0.0.1:" + server.port()
+                + " (POST /compile, POST /compile/batch, GET /stats)");
+    }
+}
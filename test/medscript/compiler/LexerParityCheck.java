@@ -0,0 +1,211 @@
+package medscript.compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.*;
+import medscript.bench.CorpusGenerator;
+
+// Differential check of the lexers: every input is lexed by the reference
+// (RegexMedLexer, the original regex cascade) and by each implementation, and
+// the token streams (type, lexeme, line, column) must be identical. Inputs are
+// the given files, CorpusGenerator prescriptions and random mutations of them
+// salted with the awkward cases: keyword prefixes, '\b' next to non-ASCII
+// letters and combining marks, fractions, '%', comments and line terminators.
+// Prints the first difference per input; exits with 1 when there is one.
+// Run it with scripts/check-lexers.sh.
+public final class LexerParityCheck {
+
+    private static final String USAGE =
+            "Usage: java -cp <classes> medscript.compiler.LexerParityCheck [--generated N] [--fuzz N] [--seed S] <file|dir>...";
+
+    // pieces the fuzzer splices into the inputs
+    private static final String[] PIECES = {
+        "rx:", "notes:", "patient", "allergy", "Tab", "Drops", "drops", "po", "po-", "iv", "sc", "pr", "prn",
+        "q6h", "q12h", "q0h", "qh", "q6", "qid", "tds", "od", "with_meals", "after_food", "ac",
+        "mg", "mcg", "ml", "g", "IU", "%", "d", "w", "m", "mgx", "m_", "PCM", "Amox", "a-b", "x--", "_", "-",
+        "1", "500", "0.5", "1.", ".5", "1/2", "5%", "5%x", "10mg/5ml", ":", "::", "/",
+        " ", "  ", "\t", "\f", "\n", "\r\n", "\r", "\u000B", "\u0085", "\u2028", "\u2029", "# note", "#",
+        "\u00E9", "\u00DF", "\u03A9", "\u0301", "\u0663", "_\u0301", "\uD835\uDC00", "\uD83D\uDE00", "\uD800", "\uDC00", "\u00A0"
+    };
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Function<String, List<Token>>> lexers = new ArrayList<>();
+    private int inputs = 0;
+    private int failures = 0;
+
+    private LexerParityCheck() {
+        add("regex", s -> drain(new RegexMedLexer(s)));
+        add("hand", s -> drain(new MedLexer(s)));
+        add("hand-buffer", s -> {
+            TokenBuffer buf = TokenBuffer.lex(s);
+            List<Token> out = new ArrayList<>(buf.size());
+            for (int i = 0; i < buf.size(); i++) out.add(buf.token(i));
+            return out;
+        });
+        add("jflex", s -> drain(new JFlexMedLexer(new StringReader(s))));
+        // a few chars per read(), so tokens and surrogate pairs straddle buffer refills
+        add("jflex-chunked", s -> drain(new JFlexMedLexer(new ChunkedReader(s))));
+    }
+
+    private static final class ChunkedReader extends Reader {
+        private final String s;
+        private int pos = 0;
+
+        ChunkedReader(String s) {
+            this.s = s;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) {
+            if (pos >= s.length()) return -1;
+            int n = Math.min(Math.min(len, 1 + (pos * 7 + s.length()) % 5), s.length() - pos);
+            s.getChars(pos, pos + n, buf, off);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private void add(String name, Function<String, List<Token>> lexer) {
+        names.add(name);
+        lexers.add(lexer);
+    }
+
+    private static List<Token> drain(Lexer lexer) {
+        List<Token> out = new ArrayList<>();
+        Token t;
+        do {
+            t = lexer.nextToken();
+            out.add(t);
+        } while (t.type != TokenType.EOF);
+        return out;
+    }
+
+    // Compares every lexer with the first one; true when they all agree.
+    boolean check(String label, String source) {
+        inputs++;
+        List<Token> expected = lexers.get(0).apply(source);
+        boolean ok = true;
+        for (int k = 1; k < lexers.size(); k++) {
+            List<Token> actual = lexers.get(k).apply(source);
+            int i = firstDifference(expected, actual);
+            if (i < 0) continue;
+            ok = false;
+            failures++;
+            System.out.printf("MISMATCH %s: %s vs %s at token %d%n", label, names.get(0), names.get(k), i);
+            System.out.printf("  %-12s %s%n", names.get(0), i < expected.size() ? expected.get(i) : "(end)");
+            System.out.printf("  %-12s %s%n", names.get(k), i < actual.size() ? actual.get(i) : "(end)");
+            if (source.length() <= 200) System.out.printf("  input: %s%n", escape(source));
+        }
+        return ok;
+    }
+
+    private static int firstDifference(List<Token> a, List<Token> b) {
+        int n = Math.min(a.size(), b.size());
+        for (int i = 0; i < n; i++) {
+            Token x = a.get(i), y = b.get(i);
+            if (x.type != y.type || !x.lexeme.equals(y.lexeme) || x.line != y.line || x.column != y.column) return i;
+        }
+        return a.size() == b.size() ? -1 : n;
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x7F) sb.append(c);
+            else sb.append(String.format("\\u%04X", (int) c));
+        }
+        return sb.toString();
+    }
+
+    // Splices, deletes and replaces random pieces; several rounds per input.
+    static String mutate(String s, Random random) {
+        StringBuilder sb = new StringBuilder(s);
+        int edits = 1 + random.nextInt(6);
+        for (int e = 0; e < edits; e++) {
+            int at = sb.length() == 0 ? 0 : random.nextInt(sb.length() + 1);
+            String piece = PIECES[random.nextInt(PIECES.length)];
+            switch (random.nextInt(3)) {
+                case 0:
+                    sb.insert(at, piece);
+                    break;
+                case 1:
+                    sb.delete(at, Math.min(sb.length(), at + 1 + random.nextInt(4)));
+                    break;
+                default:
+                    sb.replace(at, Math.min(sb.length(), at + piece.length()), piece);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    // A string made only of pieces, for the cases real prescriptions never reach.
+    static String soup(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int n = 1 + random.nextInt(12);
+        for (int i = 0; i < n; i++) sb.append(PIECES[random.nextInt(PIECES.length)]);
+        return sb.toString();
+    }
+
+    private static List<Path> files(List<String> args) throws IOException {
+        List<Path> out = new ArrayList<>();
+        for (String a : args) {
+            Path p = Path.of(a);
+            if (Files.isDirectory(p)) {
+                try (Stream<Path> s = Files.walk(p)) {
+                    out.addAll(s.filter(f -> f.toString().endsWith(".med")).sorted().collect(Collectors.toList()));
+                }
+            } else {
+                out.add(p);
+            }
+        }
+        return out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int generated = 500;
+        int fuzz = 5000;
+        long seed = 42;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("--generated".equals(a) && i + 1 < args.length) generated = Integer.parseInt(args[++i]);
+            else if ("--fuzz".equals(a) && i + 1 < args.length) fuzz = Integer.parseInt(args[++i]);
+            else if ("--seed".equals(a) && i + 1 < args.length) seed = Long.parseLong(args[++i]);
+            else if (a.startsWith("--")) { System.err.println(USAGE); System.exit(1); }
+            else paths.add(a);
+        }
+
+        LexerParityCheck check = new LexerParityCheck();
+        List<String> corpus = new ArrayList<>();
+        for (Path f : files(paths)) {
+            String source = new String(Files.readAllBytes(f), StandardCharsets.UTF_8);
+            check.check(f.toString(), source);
+            corpus.add(source);
+        }
+        CorpusGenerator gen = new CorpusGenerator(seed).meds(1, 8).syntaxErrorRate(0.3).semanticErrorRate(0.3);
+        for (int i = 0; i < generated; i++) {
+            String source = gen.prescription();
+            check.check("generated #" + i, source);
+            corpus.add(source);
+        }
+        Random random = new Random(seed);
+        for (int i = 0; i < fuzz; i++) {
+            String source = corpus.isEmpty() || random.nextInt(4) == 0
+                    ? soup(random) : mutate(corpus.get(random.nextInt(corpus.size())), random);
+            check.check("fuzz #" + i + " (seed " + seed + ")", source);
+        }
+
+        System.out.printf("%d inputs, lexers %s: %s%n", check.inputs, String.join(", ", check.names),
+                check.failures == 0 ? "identical token streams" : check.failures + " mismatches");
+        if (check.failures > 0) System.exit(1);
+    }
+}